@@ -0,0 +1,194 @@
+package parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the full parser on a synthetic game and measures its throughput and
+ * memory use. If given a baseline, it fails when the results are worse than
+ * the baseline by more than a threshold, so that performance regressions can
+ * be caught without the actual game files.
+ * <p>
+ * Arguments: scale [baseline file] [threshold] [iterations]. The scale
+ * defaults to 1, the threshold, the allowed fraction of slowdown, to 0.1, and
+ * the iterations to 5. If the baseline file doesn't exist yet, the results
+ * are written to it instead.
+ * <p>
+ * The game is generated in a separate process, so that the peak memory
+ * measured is the parser's alone. The parser is then run a few times to warm
+ * up the JVM before the timed iterations, and the median iteration is
+ * compared, so that a single slow run doesn't fail the benchmark.
+ * <p>
+ * Must be run from the parser's folder, so that the statements are found.
+ */
+public class Benchmark {
+	private static final String GAME = "eu4";
+	private static final double DEFAULT_THRESHOLD = 0.1;
+	private static final int DEFAULT_ITERATIONS = 5;
+	private static final int WARM_UP_RUNS = 2;
+
+	private static final String FILES_PER_SECOND = "files_per_second";
+	private static final String MB_PER_SECOND = "mb_per_second";
+	private static final String PEAK_RSS = "peak_rss_mb";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int scale = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		Path baseline = args.length > 1 ? Paths.get(args[1]) : null;
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ITERATIONS;
+
+		Path game = Files.createTempDirectory("parser-game");
+		Path output = Files.createTempDirectory("parser-output");
+		try {
+			generate(game, scale);
+			List<Path> events = IO.listFiles(game.resolve("events"));
+			long bytes = 0;
+			for (Path event : events) {
+				bytes += Files.size(event);
+			}
+
+			double[] times = new double[iterations];
+			try (VirtualFileSystem files = VirtualFileSystem.create(game, Collections.<Path> emptyList())) {
+				for (int i = 0; i < WARM_UP_RUNS; i++) {
+					Parsing.run(files, GAME, output);
+				}
+				for (int i = 0; i < iterations; i++) {
+					long start = System.nanoTime();
+					Parsing.run(files, GAME, output);
+					times[i] = (System.nanoTime() - start) / 1e9;
+				}
+			}
+			Arrays.sort(times);
+			double seconds = times[iterations / 2];
+
+			Map<String, Double> results = new HashMap<>();
+			results.put(FILES_PER_SECOND, events.size() / seconds);
+			results.put(MB_PER_SECOND, bytes / 1e6 / seconds);
+			results.put(PEAK_RSS, getPeakMemory() / 1e6);
+			System.out.println(String.format(Locale.US,
+					"Scale %d: %d files, %.1f MB in a median of %.2f s (%.2f to %.2f s over %d runs). "
+							+ "%.1f files/s, %.2f MB/s, peak RSS %.0f MB",
+					scale, events.size(), bytes / 1e6, seconds, times[0], times[iterations - 1], iterations,
+					results.get(FILES_PER_SECOND),
+					results.get(MB_PER_SECOND), results.get(PEAK_RSS)));
+
+			if (baseline == null)
+				return;
+			if (!Files.isRegularFile(baseline)) {
+				writeResults(baseline, results);
+				System.out.println("Baseline written to " + baseline);
+				return;
+			}
+			List<String> regressions = compare(readResults(baseline), results, threshold);
+			for (String regression : regressions) {
+				System.out.println("Regression: " + regression);
+			}
+			if (!regressions.isEmpty())
+				System.exit(1);
+		} finally {
+			delete(game);
+			delete(output);
+		}
+	}
+
+	/**
+	 * Generates the synthetic game in a separate JVM, so its memory use isn't
+	 * counted as the parser's
+	 */
+	private static void generate(Path game, int scale) throws IOException, InterruptedException {
+		Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+		Process process = new ProcessBuilder(java.toString(), "-cp", System.getProperty("java.class.path"),
+				SyntheticGame.class.getName(), game.toString(), Integer.toString(scale), GAME).inheritIO().start();
+		if (process.waitFor() != 0)
+			throw new IOException("Unable to generate the synthetic game");
+	}
+
+	/**
+	 * Compares results to a baseline
+	 *
+	 * @return A description of every result worse than the baseline by more
+	 *         than the threshold
+	 */
+	private static List<String> compare(Map<String, Double> baseline, Map<String, Double> results,
+			double threshold) {
+		List<String> regressions = new ArrayList<>();
+		for (String key : new String[] { FILES_PER_SECOND, MB_PER_SECOND }) {
+			Double expected = baseline.get(key);
+			if (expected != null && results.get(key) < expected * (1 - threshold))
+				regressions.add(String.format(Locale.US, "%s %.2f, baseline %.2f", key, results.get(key),
+						expected));
+		}
+		Double expected = baseline.get(PEAK_RSS);
+		if (expected != null && results.get(PEAK_RSS) > expected * (1 + threshold))
+			regressions.add(String.format(Locale.US, "%s %.0f, baseline %.0f", PEAK_RSS, results.get(PEAK_RSS),
+					expected));
+		return regressions;
+	}
+
+	/**
+	 * Gets the peak resident set size of the process. Where the operating
+	 * system doesn't report it, the peak heap use is used instead
+	 *
+	 * @return The peak memory use, in bytes
+	 */
+	private static long getPeakMemory() {
+		Path status = Paths.get("/proc/self/status");
+		if (Files.isReadable(status)) {
+			try (BufferedReader in = Files.newBufferedReader(status)) {
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					if (line.startsWith("VmHWM:"))
+						return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static Map<String, Double> readResults(Path file) throws IOException {
+		Map<String, String> lines = new HashMap<>();
+		IO.readLocalisation(file, lines);
+		Map<String, Double> results = new HashMap<>();
+		lines.forEach((key, value) -> results.put(key, Double.parseDouble(value.trim())));
+		return results;
+	}
+
+	private static void writeResults(Path file, Map<String, Double> results) throws IOException {
+		List<String> lines = new ArrayList<>();
+		results.forEach((key, value) -> lines.add(String.format(Locale.US, "%s: %.2f", key, value)));
+		Collections.sort(lines);
+		IO.writeFile(file, lines);
+	}
+
+	private static void delete(Path folder) throws IOException {
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(folder)) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+}
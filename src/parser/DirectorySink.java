@@ -0,0 +1,36 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Writes each file separately into a folder. A name with "/" in it is written
+ * into a subfolder, which is created if missing. Writing a name again replaces
+ * the file
+ */
+final class DirectorySink implements OutputSink {
+	private final Path folder;
+
+	/**
+	 * @param folder
+	 *            The folder. Created if missing
+	 * @throws IOException
+	 */
+	DirectorySink(Path folder) throws IOException {
+		this.folder = folder;
+		Files.createDirectories(folder);
+	}
+
+	@Override
+	public void write(String name, Collection<String> contents) throws IOException {
+		Path file = folder.resolve(name);
+		Files.createDirectories(file.getParent());
+		IO.writeFile(file, contents);
+	}
+
+	@Override
+	public void close() {
+	}
+}
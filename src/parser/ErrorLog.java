@@ -0,0 +1,187 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects every statement or localisation key that could not be found, with
+ * how often it was needed in each file and the first line it was needed on,
+ * so the most common gaps can be fixed first. Safe to record into from any
+ * number of threads without locking: counts are striped, and once a key has
+ * been seen in a file, recording it again only increments a counter.
+ * <p>
+ * Counts are kept per file so that when a file is rendered again, its
+ * earlier errors can be forgotten rather than counted twice.
+ */
+public final class ErrorLog {
+	/** Most locations shown per key */
+	private static final int SAMPLES = 3;
+	private static final String UNKNOWN_FILE = "?";
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final LongAdder total = new LongAdder();
+	/** Errors recorded by each thread while something it renders is captured */
+	private final ThreadLocal<List<Recorded>> captured = new ThreadLocal<>();
+
+	private static final class Entry {
+		/** Occurrences by the file's path relative to the game folder */
+		final Map<String, Occurrences> files = new ConcurrentHashMap<>();
+	}
+
+	private static final class Occurrences {
+		final LongAdder count = new LongAdder();
+		/** The first line the key was needed on. MAX_VALUE if unknown */
+		final AtomicInteger firstLine = new AtomicInteger(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * An error as it was recorded, so that it can be recorded again
+	 */
+	static final class Recorded {
+		final String key;
+		final Token token;
+
+		Recorded(String key, Token token) {
+			this.key = key;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Records that a key could not be found
+	 *
+	 * @param key
+	 *            The statement or localisation key
+	 * @param token
+	 *            The token being localised. Null if unknown
+	 */
+	void record(String key, Token token) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			entry = entries.computeIfAbsent(key, k -> new Entry());
+		String file = token == null || token.file == null ? UNKNOWN_FILE : token.file;
+		Occurrences occurrences = entry.files.get(file);
+		if (occurrences == null)
+			occurrences = entry.files.computeIfAbsent(file, f -> new Occurrences());
+		occurrences.count.increment();
+		total.increment();
+		int line = token == null ? 0 : token.line;
+		if (line > 0 && line < occurrences.firstLine.get())
+			occurrences.firstLine.accumulateAndGet(line, Math::min);
+
+		List<Recorded> capture = captured.get();
+		if (capture != null)
+			capture.add(new Recorded(key, token));
+	}
+
+	/**
+	 * Starts capturing the errors this thread records, so that they can be
+	 * recorded again each time what is being rendered is reused
+	 *
+	 * @return The capture this one is nested in, to be passed to
+	 *         {@link #endCapture(List)}. Null if none
+	 */
+	List<Recorded> startCapture() {
+		List<Recorded> outer = captured.get();
+		captured.set(new ArrayList<>());
+		return outer;
+	}
+
+	/**
+	 * Stops capturing the errors this thread records. They are also added to
+	 * the capture this one is nested in
+	 *
+	 * @param outer
+	 *            The capture returned by {@link #startCapture()}
+	 * @return The errors recorded since the capture started
+	 */
+	List<Recorded> endCapture(List<Recorded> outer) {
+		List<Recorded> recorded = captured.get();
+		if (outer == null)
+			captured.remove();
+		else {
+			outer.addAll(recorded);
+			captured.set(outer);
+		}
+		return recorded;
+	}
+
+	/**
+	 * Records captured errors again
+	 */
+	void replay(List<Recorded> recorded) {
+		for (Recorded error : recorded) {
+			record(error.key, error.token);
+		}
+	}
+
+	/**
+	 * Forgets every error recorded for a file, before it is rendered again.
+	 * Must not be called while errors are being recorded
+	 *
+	 * @param file
+	 *            The file's path relative to the game folder, E.G.
+	 *            "events/flavor.txt"
+	 */
+	void forget(String file) {
+		for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+			Entry entry = iterator.next();
+			entry.files.remove(file);
+			if (entry.files.isEmpty())
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Gets how many times any key has been recorded, including for files
+	 * since forgotten
+	 */
+	long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * Describes every key that could not be found, most frequent first, one
+	 * per line, E.G. "1532 add_prestige (events/flavor.txt:12, ...)"
+	 *
+	 * @return The report
+	 */
+	public List<String> getReport() {
+		// Counts may still be changing, so each is read once
+		Map<String, Long> counts = new TreeMap<>();
+		Map<String, List<String>> locations = new HashMap<>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			long count = 0;
+			List<String> sample = new ArrayList<>(SAMPLES);
+			for (Map.Entry<String, Occurrences> file : new TreeMap<>(entry.getValue().files).entrySet()) {
+				count += file.getValue().count.sum();
+				int line = file.getValue().firstLine.get();
+				if (sample.size() < SAMPLES)
+					sample.add(line == Integer.MAX_VALUE ? file.getKey() : file.getKey() + ":" + line);
+			}
+			counts.put(entry.getKey(), count);
+			locations.put(entry.getKey(), sample);
+		}
+		List<String> sorted = new ArrayList<>(counts.keySet());
+		sorted.sort((a, b) -> Long.compare(counts.get(b), counts.get(a))); // Stable, so ties stay by key
+
+		List<String> report = new ArrayList<>(sorted.size());
+		for (String key : sorted) {
+			long count = counts.get(key);
+			List<String> sample = locations.get(key);
+			if (sample.isEmpty())
+				report.add(count + " " + key);
+			else
+				report.add(String.format("%d %s (%s%s)", count, key, String.join(", ", sample),
+						count > sample.size() ? ", ..." : ""));
+		}
+		return report;
+	}
+}
@@ -0,0 +1,308 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything needed to render the events of one game: its localisation,
+ * statements and rules, and its event modifiers. Immutable once loaded, so
+ * contexts for several games (or versions of a game) can be used at the same
+ * time, each from any number of threads.
+ */
+public class GameContext {
+	/** Sections that invert everything within them. Token types are lower case */
+	private static final Set<String> NEGATIONS = new HashSet<String>(Arrays.asList(new String[] {
+			"not", "nor" }));
+	/** Prefix of the rule key recorded when a modifier's effects are output */
+	static final String MODIFIER_KEY = "modifier:";
+	/** Most rendered leaf statements kept in the render cache */
+	private static final int RENDER_CACHE_SIZE = 1 << 16;
+
+	private final String game;
+	private final Localisation localisation;
+	private final Map<String, String[]> namedBlocks;
+	private final Map<String, String[]> multiTokenExpressions;
+	private final Map<String, List<String>> modifiers;
+	/** Compiled render plans, by parent type and type */
+	private final Map<PlanKey, RenderPlan> plans = new ConcurrentHashMap<>();
+	private final RenderCache renderCache = new RenderCache(RENDER_CACHE_SIZE);
+
+	private GameContext(VirtualFileSystem files, String game, Localisation localisation) throws IOException {
+		this.game = game;
+		this.localisation = localisation;
+
+		Map<String, String[]> namedBlocks = new HashMap<>();
+		IO.readExceptions(String.format("statements/%s/namedSections.txt", game), namedBlocks);
+		this.namedBlocks = Collections.unmodifiableMap(namedBlocks);
+		Map<String, String[]> multiTokenExpressions = new HashMap<>();
+		IO.readExceptions(String.format("statements/%s/exceptions.txt", game), multiTokenExpressions);
+		this.multiTokenExpressions = Collections.unmodifiableMap(multiTokenExpressions);
+
+		Map<String, List<String>> modifiers = new HashMap<>();
+		if (game.equals("eu4"))
+			for (Path file : files.listFiles("common/event_modifiers")) {
+				// Replaces any errors found when the rules were last loaded
+				localisation.getErrors().forget(files.getRelativePath(file));
+				parseModifiers(Parsing.readTree(files, file, null), modifiers);
+			}
+		this.modifiers = Collections.unmodifiableMap(modifiers);
+	}
+
+	/**
+	 * Reads the game's localisation and every statement and rule file of a
+	 * given game
+	 *
+	 * @param files
+	 *            The game's files
+	 * @param game
+	 *            Which game's statements to use, E.G. "eu4"
+	 * @return The game's context
+	 * @throws IOException
+	 */
+	public static GameContext load(VirtualFileSystem files, String game) throws IOException {
+		return new GameContext(files, game, Localisation.load(files, game));
+	}
+
+	/**
+	 * Re-reads every statement and rule file, keeping the game's localisation
+	 *
+	 * @param files
+	 *            The game's files
+	 * @return The new context. Errors are shared with this one
+	 * @throws IOException
+	 */
+	GameContext reloadRules(VirtualFileSystem files) throws IOException {
+		return new GameContext(files, game, localisation.reloadRules(files));
+	}
+
+	/**
+	 * Finds every rule key whose rules differ between this and another
+	 * version of the context
+	 *
+	 * @param old
+	 *            The other version
+	 * @return The keys found. Null if every output might be affected
+	 */
+	Set<String> getChangedKeys(GameContext old) {
+		Set<String> changed = localisation.getChangedKeys(old.localisation);
+		if (changed == null)
+			return null;
+		Localisation.addChangedKeys(old.namedBlocks, namedBlocks, changed);
+		Localisation.addChangedKeys(old.multiTokenExpressions, multiTokenExpressions, changed);
+		Set<String> changedModifiers = new HashSet<>();
+		Localisation.addChangedKeys(old.modifiers, modifiers, changedModifiers);
+		for (String modifier : changedModifiers) {
+			changed.add(MODIFIER_KEY + modifier);
+		}
+		return changed;
+	}
+
+	/**
+	 * Reads all event modifiers and converts them to human-readable text, so
+	 * that they can be displayed when a modifier is added
+	 *
+	 * @param root
+	 *            A tokenized file containing modifiers
+	 * @param modifiers
+	 *            Map the modifiers' effects are added to
+	 */
+	private void parseModifiers(Token root, Map<String, List<String>> modifiers) {
+		for (Token child : root.children) {
+			List<String> effects = new LinkedList<>();
+			String name = child.type;
+			for (Token child2 : child.children) {
+				String s = localisation.localize(child2, getPlan(child2));
+				if (s.charAt(0) >= '0' && s.charAt(0) <= '9')
+					s = "+" + s;
+				effects.add(s);
+			}
+			modifiers.put(name, effects);
+		}
+	}
+
+	/**
+	 * Gets the render plan for a token, compiling it from the rule files the
+	 * first time its combination of parent type and type is seen
+	 *
+	 * @param token
+	 *            The token to be rendered
+	 * @return The token's render plan
+	 */
+	RenderPlan getPlan(Token token) {
+		PlanKey key = new PlanKey(token.parent == null ? "" : token.parent.type, token.type);
+		RenderPlan plan = plans.get(key);
+		if (plan == null)
+			plan = plans.computeIfAbsent(key, k -> compilePlan(k.parentType, k.type));
+		return plan;
+	}
+
+	/**
+	 * Records the rule keys the render plans of every token in a tree are
+	 * compiled from. They only depend on the tree, not on how it is rendered,
+	 * so need only be found once per tree
+	 *
+	 * @param root
+	 *            The root token of the tree
+	 * @param used
+	 *            Set the keys are added to
+	 */
+	static void recordPlanKeys(Token root, Set<String> used) {
+		if (root.parent == null)
+			recordPlanKeys(used, "", root.type);
+		for (Token child : root.children) {
+			recordPlanKeys(used, root.type, child.type);
+			recordPlanKeys(child, used);
+		}
+	}
+
+	/**
+	 * Records every rule key a render plan is compiled from
+	 *
+	 * @param used
+	 *            Set the keys are added to
+	 * @param parentType
+	 *            The type of the token's parent
+	 * @param type
+	 *            The token type
+	 */
+	private static void recordPlanKeys(Set<String> used, String parentType, String type) {
+		Collections.addAll(used, getPlanKeys(parentType, type));
+	}
+
+	private static String[] getPlanKeys(String parentType, String type) {
+		return new String[] { type, type + "_country", parentType, parentType + "_" + type,
+				parentType + "_" + type + "_country" };
+	}
+
+	private static final class PlanKey {
+		final String parentType, type;
+		private final int hash;
+
+		PlanKey(String parentType, String type) {
+			this.parentType = parentType;
+			this.type = type;
+			this.hash = 31 * parentType.hashCode() + type.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PlanKey))
+				return false;
+			PlanKey other = (PlanKey) o;
+			return hash == other.hash && type.equals(other.type) && parentType.equals(other.parentType);
+		}
+	}
+
+	private RenderPlan compilePlan(String parentType, String type) {
+		return new RenderPlan(NEGATIONS.contains(type), namedBlocks.get(type),
+				multiTokenExpressions.get(type), localisation.getVariation(type),
+				localisation.getLookupType(type),
+				localisation.getStatementType(parentType, type, ""),
+				localisation.getStatementType(parentType, type, "_country"),
+				localisation.isPercentageStatement(type));
+	}
+
+	/**
+	 * Localises a token without children, reusing the result for identical
+	 * statements rendered before
+	 *
+	 * @param token
+	 *            The token, which must have no children
+	 * @param plan
+	 *            The token's render plan
+	 * @return The localised statement
+	 */
+	String localizeLeaf(Token token, RenderPlan plan) {
+		Set<String> used = Localisation.usedKeys.get();
+		RenderCache.Key key = RenderCache.keyOf(token);
+		RenderCache.Rendered cached = renderCache.get(key);
+		if (cached != null && (used == null || cached.ruleKeys != null)) {
+			if (used != null)
+				Collections.addAll(used, cached.ruleKeys);
+			return cached.rendered;
+		}
+
+		// The keys this statement uses are recorded apart, so they can be stored with it.
+		// Its plan's keys are recorded for the whole tree beforehand, so aren't among them
+		Set<String> ruleKeys = null;
+		if (used != null) {
+			ruleKeys = new HashSet<>();
+			Localisation.usedKeys.set(ruleKeys);
+		}
+		// Statements with errors aren't cached, so that every occurrence is counted
+		long errors = localisation.getErrors().getTotal();
+		String out;
+		try {
+			out = localisation.localize(token, plan);
+		} finally {
+			if (used != null) {
+				Localisation.usedKeys.set(used);
+				used.addAll(ruleKeys);
+			}
+		}
+		if (out != null && localisation.getErrors().getTotal() == errors)
+			renderCache.put(key, new RenderCache.Rendered(out,
+					ruleKeys == null ? null : ruleKeys.toArray(new String[ruleKeys.size()])));
+		return out;
+	}
+
+	/**
+	 * Reuses the statements an older version of this context rendered, if no
+	 * rule key they used has changed since
+	 *
+	 * @param old
+	 *            The older version
+	 * @param changedKeys
+	 *            The rule keys that differ between the versions
+	 */
+	void keepRenderings(GameContext old, Set<String> changedKeys) {
+		renderCache.putUnaffected(old.renderCache, changedKeys, (parentType, type) -> {
+			for (String key : getPlanKeys(parentType, type)) {
+				if (changedKeys.contains(key))
+					return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Gets the render cache, whose hit and miss counts show how well it is
+	 * working
+	 */
+	RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	/**
+	 * Gets the effects of an event modifier
+	 *
+	 * @param name
+	 *            The modifier's name
+	 * @return The effects, localised. Null if there is no such modifier
+	 */
+	List<String> getModifierEffects(String name) {
+		return modifiers.get(name);
+	}
+
+	public Localisation getLocalisation() {
+		return localisation;
+	}
+
+	public String getGame() {
+		return game;
+	}
+}
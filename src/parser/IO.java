@@ -2,26 +2,77 @@ package parser;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.LinkedList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class IO {
 	public static BufferedReader getReader(String fileName) throws IOException {
-		return new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF8"));
+		return getReader(Paths.get(fileName));
+	}
+	
+	public static BufferedReader getReader(Path file) throws IOException {
+		return new BufferedReader(new InputStreamReader(Files.newInputStream(file), "UTF8"));
 	}
 	
 	public static BufferedReader getANSIReader(String fileName) throws IOException {
-		return new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "Cp1252"));
+		return getANSIReader(Paths.get(fileName));
+	}
+	
+	public static BufferedReader getANSIReader(Path file) throws IOException {
+		return new BufferedReader(new InputStreamReader(Files.newInputStream(file), "Cp1252"));
+	}
+
+	/**
+	 * Opens the root of a game or mod folder. Zip and jar archives are opened
+	 * as a file system of their own, so that their contents can be read in
+	 * place rather than having to be extracted first. An archive stays open
+	 * until its file system is closed, E.G. by closing the
+	 * {@link VirtualFileSystem} it is a root of
+	 * 
+	 * @param path
+	 *            Path to the folder or archive
+	 * @return The root directory of the folder or archive
+	 * @throws IOException
+	 */
+	public static Path getRoot(String path) throws IOException {
+		Path root = Paths.get(path);
+		if (Files.isRegularFile(root) && isArchive(root)) {
+			FileSystem archive = FileSystems.newFileSystem(root, (ClassLoader) null);
+			return archive.getRootDirectories().iterator().next();
+		}
+		return root;
+	}
+
+	private static boolean isArchive(Path file) {
+		String name = file.getFileName().toString().toLowerCase();
+		return name.endsWith(".zip") || name.endsWith(".jar");
+	}
+
+	/**
+	 * Lists every regular file within a folder and its subfolders, in a
+	 * stable order regardless of the underlying file system
+	 * 
+	 * @param folder
+	 *            The folder to be listed
+	 * @return The files found
+	 * @throws IOException
+	 */
+	public static List<Path> listFiles(Path folder) throws IOException {
+		try (Stream<Path> files = Files.walk(folder)) {
+			return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
 	}
 
 	/**
@@ -35,10 +86,27 @@ public class IO {
 	 * @return Linked list consisting of the processed output
 	 * @throws IOException
 	 */
-	public static LinkedList<String> readFile(String fileName) throws IOException {
+	public static LinkedList<String> readFile(Path fileName) throws IOException {
+		return readFile(fileName, null);
+	}
+
+	/**
+	 * Reads a script file, splitting it so that each line holds one statement
+	 * or bracket
+	 * 
+	 * @param fileName
+	 *            The file
+	 * @param lineNumbers
+	 *            Filled with the line of the file each returned line came
+	 *            from, starting from 1. Null if not needed
+	 * @return The lines
+	 * @throws IOException
+	 */
+	public static LinkedList<String> readFile(Path fileName, List<Integer> lineNumbers) throws IOException {
 		LinkedList<String> lines = new LinkedList<>();
 		BufferedReader in = getANSIReader(fileName);
 		String line = in.readLine();
+		int lineNumber = 1;
 		while (line != null) {
 			line = line.trim();
 			// Get rid of comments
@@ -65,13 +133,17 @@ public class IO {
 				}
 				// Get rid of whitespace
 				s = s.trim();
-				if (!s.equals(""))
+				if (!s.equals("")) {
 					lines.add(s);
+					if (lineNumbers != null)
+						lineNumbers.add(lineNumber);
+				}
 				start = end + 1;
 				end = line.indexOf('\n', start + 1);
 			} while (start != 0);
 			// Go onto next line
 			line = in.readLine();
+			lineNumber++;
 		}
 		in.close();
 		return lines;
@@ -91,6 +163,10 @@ public class IO {
 	 * @throws IOException
 	 */
 	public static void readLocalisation(String fileName, Map<String, String> map) throws IOException {
+		readLocalisation(Paths.get(fileName), map);
+	}
+
+	public static void readLocalisation(Path fileName, Map<String, String> map) throws IOException {
 		BufferedReader in = getReader(fileName);
 		String line = in.readLine();
 		while (line != null) {
@@ -178,7 +254,11 @@ public class IO {
 	 * @throws IOException
 	 */
 	public static void writeFile(String fileName, Collection<String> contents) throws IOException {
-		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+		writeFile(Paths.get(fileName), contents);
+	}
+
+	public static void writeFile(Path fileName, Collection<String> contents) throws IOException {
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
 				fileName), "UTF8"));
 		for (String string : contents) {
 			out.write(string + "\n");
@@ -186,18 +266,11 @@ public class IO {
 		out.close();
 	}
 
-	public static void readHeaders(String fileName, Collection<String> headerList, int level)
+	public static void readHeaders(Collection<Path> files, Collection<String> headerList, int level)
 			throws IOException {
-		File f = new File(fileName);
-		Collection<String> file;
-		if (f.isFile())
-			file = readFile(fileName);
-		else {
-			file = new LinkedList<>();
-			for (Object fi : Files.walk(Paths.get(fileName)).toArray()) {
-				if (((Path) fi).toFile().isFile())
-					file.addAll(readFile(fi.toString()));
-			}
+		Collection<String> file = new LinkedList<>();
+		for (Path fi : files) {
+			file.addAll(readFile(fi));
 		}
 		int nesting = 0;
 		for (String line : file) {
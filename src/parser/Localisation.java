@@ -1,33 +1,46 @@
 package parser;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import parser.Token.Kind;
+
+/**
+ * The statements, rules and game localisation of one game. Immutable once
+ * loaded, other than the errors found while localising, so one instance may
+ * be used by any number of threads, and instances for different games may be
+ * used side by side.
+ */
 public class Localisation {
-	private static final Map<String, String> lookupRules = new HashMap<>();
-	private static final Map<String, String> localisation = new HashMap<>();
-	private static final Map<String, String> statements = new HashMap<>();
-	private static final Map<String, String> operators = new HashMap<>();
-	public static final Map<String, String> variations = new HashMap<>();
-	private static final Set<String> operatorTypes = new HashSet<>();
-	private static final Map<String, String[]> parentExceptions = new HashMap<>();
+	private final String game;
+	private final Map<String, String> lookupRules;
+	private final LocalisationStore localisation;
+	private final Map<String, String> statements;
+	private final Map<String, String> operators;
+	private final Map<String, String> variations;
+	private final Set<String> operatorTypes;
+	private final Map<String, String[]> parentExceptions;
 	
 	private static final Pattern country = Pattern.compile("[a-zA-Z]{3}");
-	private static final Pattern number = Pattern.compile("-?\\d+\\.?\\d*");
 	
 	private static final String OPERATOR = "[OPERATOR]";
 	
-	public static final Set<String> errors = new HashSet<>();
+	private final ErrorLog errors;
+	
+	/** Rule keys used by the file being rendered on this thread. Null unless being recorded */
+	static final ThreadLocal<Set<String>> usedKeys = new ThreadLocal<>();
 	
 	public static enum Operator {
 		LESS, NOTLESS, MORE, NOTMORE, EQUAL, NOTEQUAL;
@@ -60,84 +73,192 @@ public class Localisation {
 		}
 	}
 	
-	public static void initialize(String path, String game) {
-		try {
-			Files.walk(Paths.get(String.format("statements/%s/localisation", game))).forEach(filePath -> {
-				if (Files.isRegularFile(filePath)) {
+	private Localisation(String game, LocalisationStore localisation, ErrorLog errors,
+			Map<String, String> statements, Map<String, String> lookupRules, Map<String, String> operators,
+			Map<String, String[]> parentExceptions, Map<String, String> variations) {
+		this.game = game;
+		this.localisation = localisation;
+		this.errors = errors;
+		
+		Set<String> operatorTypes = new HashSet<>();
+		for (String key : statements.keySet()) {
+			if (statements.get(key).contains(OPERATOR))
+				operatorTypes.add(key);
+		}
+		this.statements = Collections.unmodifiableMap(statements);
+		this.operatorTypes = Collections.unmodifiableSet(operatorTypes);
+		this.lookupRules = Collections.unmodifiableMap(lookupRules);
+		this.operators = Collections.unmodifiableMap(operators);
+		this.parentExceptions = Collections.unmodifiableMap(parentExceptions);
+		this.variations = Collections.unmodifiableMap(variations);
+	}
+
+	/**
+	 * Reads the game's localisation and the statement and rule files of a
+	 * given game
+	 * 
+	 * @param files
+	 *            The game's files
+	 * @param game
+	 *            The game, E.G. "eu4"
+	 * @return The game's localisation
+	 * @throws IOException
+	 */
+	public static Localisation load(VirtualFileSystem files, String game) throws IOException {
+		Map<String, String> gameLocalisation = readGameLocalisation(files.listFiles("localisation"));
+		if (game.equals("hoi4"))
+			IO.readLocalisation("statements/hoi4/countries.txt", gameLocalisation);
+		return loadRules(files, game, LocalisationStore.of(gameLocalisation), new ErrorLog());
+	}
+
+	/**
+	 * Re-reads the statement and rule files, keeping the game localisation.
+	 * Errors are shared with this instance
+	 * 
+	 * @param files
+	 *            The game's files, which variations are read from
+	 * @return The new localisation
+	 * @throws IOException
+	 */
+	Localisation reloadRules(VirtualFileSystem files) throws IOException {
+		return loadRules(files, game, localisation, errors);
+	}
+
+	private static Localisation loadRules(VirtualFileSystem files, String game, LocalisationStore localisation,
+			ErrorLog errors) throws IOException {
+		Map<String, String> statements = new HashMap<>();
+		for (Path filePath : IO.listFiles(Paths.get(String.format("statements/%s/localisation", game)))) {
+			IO.readLocalisation(filePath, statements);
+		}
+		Map<String, String> lookupRules = new HashMap<>();
+		IO.readLookupRules(String.format("statements/%s/lookupRules.txt", game), lookupRules);
+		Map<String, String> operators = new HashMap<>();
+		IO.readLocalisation("statements/operators.txt", operators);
+		Map<String, String[]> parentExceptions = new HashMap<>();
+		IO.readExceptions(String.format("statements/%s/parentExceptions.txt", game), parentExceptions);
+		
+		Map<String, String> variations = new HashMap<>();
+		Map<String, String> variationFiles = new HashMap<>();
+		IO.readLocalisation(String.format("statements/%s/variations.txt", game), variationFiles);
+		variationFiles.forEach((statement, param) -> {
+			try {
+				if (statement.startsWith("#"))
+					return;
+				String[] params = param.split(", ");
+				Collection<String> vars = new HashSet<>();
+				IO.readHeaders(files.find(params[0]), vars, Integer.parseInt(params[1]));
+				for (String string : vars) {
+					variations.put(string, statement);
+				}
+			} catch (Exception e) {
+				throw new IllegalStateException(e.toString());
+			}
+		});
+		return new Localisation(game, localisation, errors, statements, lookupRules, operators,
+				parentExceptions, variations);
+	}
+
+	/**
+	 * Finds every statement key and token type whose rules differ between
+	 * this and another version of the rules
+	 * 
+	 * @param old
+	 *            The other version
+	 * @return The keys found. If the operators changed, null, as any statement
+	 *         might be affected
+	 */
+	Set<String> getChangedKeys(Localisation old) {
+		if (!old.operators.equals(operators))
+			return null;
+		Set<String> changed = new HashSet<>();
+		addChangedKeys(old.statements, statements, changed);
+		addChangedKeys(old.lookupRules, lookupRules, changed);
+		addChangedKeys(old.parentExceptions, parentExceptions, changed);
+		addChangedKeys(old.variations, variations, changed);
+		return changed;
+	}
+
+	/**
+	 * Gets every type or statement that could not be localised, with how
+	 * often and where
+	 * 
+	 * @return The errors found so far
+	 */
+	public ErrorLog getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Finds every key whose value differs between two versions of a map
+	 * 
+	 * @param before
+	 *            The old version
+	 * @param after
+	 *            The new version
+	 * @param changed
+	 *            Collection the keys found are added to
+	 */
+	static <T> void addChangedKeys(Map<String, T> before, Map<String, T> after, Collection<String> changed) {
+		for (Map.Entry<String, T> entry : before.entrySet()) {
+			if (!Objects.deepEquals(entry.getValue(), after.get(entry.getKey())))
+				changed.add(entry.getKey());
+		}
+		for (String key : after.keySet()) {
+			if (!before.containsKey(key))
+				changed.add(key);
+		}
+	}
+
+	/**
+	 * Reads every English localisation file given. The files are read in
+	 * parallel, but merged in the order given, so that later files (E.G.
+	 * those of mods) override earlier ones regardless of thread scheduling
+	 * 
+	 * @param files
+	 *            The game's localisation files
+	 * @return The localisation read
+	 */
+	private static Map<String, String> readGameLocalisation(List<Path> files) {
+		Map<String, String> localisation = new HashMap<>();
+		files.parallelStream()
+				.filter(file -> file.getFileName().toString().contains("_l_english"))
+				.map(file -> {
+					Map<String, String> map = new HashMap<>();
 					try {
-						IO.readLocalisation(filePath.toString(), statements);
+						IO.readLocalisation(file, map);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
-				}
-			});
-			for (String key : statements.keySet()) {
-				if (statements.get(key).contains(OPERATOR))
-					operatorTypes.add(key);
-			}
-			
-			IO.readLookupRules(String.format("statements/%s/lookupRules.txt", game), lookupRules);
-			Files.walk(Paths.get(path + "/localisation")).forEach(file -> {
-				try {
-					if (((Path) file).toFile().isFile())
-						if (file.toString().contains("_l_english"))
-							IO.readLocalisation(file.toString(), localisation);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			});
-			IO.readLocalisation("statements/operators.txt", operators);
-			IO.readExceptions(String.format("statements/%s/parentExceptions.txt", game), parentExceptions);
-			
-			if (game.equals("hoi4"))
-				IO.readLocalisation("statements/hoi4/countries.txt", localisation);
-		
-			Map<String, String> variationFiles = new HashMap<>();
-			IO.readLocalisation(String.format("statements/%s/variations.txt", game), variationFiles);
-			variationFiles.forEach((localisation, param) -> {
-				try {
-					if (localisation.startsWith("#"))
-						return;
-					String[] params = param.split(", ");
-					Collection<String> vars = new HashSet<>();
-					IO.readHeaders(path + params[0], vars, Integer.parseInt(params[1]));
-					for (String string : vars) {
-						variations.put(string, localisation);
-					}
-				} catch (Exception e) {
-					throw new IllegalStateException(e.toString());
-				}
-			});
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+					return map;
+				}).forEachOrdered(localisation::putAll);
+		return localisation;
 	}
 	
-	public static String localize(Token token) {
-		if (variations.containsKey(token.type)) {
-			return formatString(variations.get(token.type), token.operator, token.inverted,
+	public String localize(Token token, RenderPlan plan) {
+		if (plan.variation != null) {
+			return formatString(token, plan.variation, token.operator, token.inverted,
 					findLocalisation(token.type), token.value);
 		}
 		
-		String type = token.type;
-		if (getValueType(token) == ValueType.COUNTRY)
-			type += "_country";
-		if (isParentException(token))
-			type = token.parent.type + "_" + type;
-		if (hasStatement(type)) {
-			return formatString(type, token.operator, token.inverted, localizeValue(token));
+		ValueType valueType = getValueType(token, plan);
+		String type = valueType == ValueType.COUNTRY ? plan.countryStatement : plan.statement;
+		if (type != null) {
+			return formatString(token, type, token.operator, token.inverted, localizeValue(token, plan, valueType));
 		} else {
 			String localisation = getScopeLocalisation(token);
 			if (localisation == null) {
-				errors.add(token.type);
+				errors.record(token.type, token);
 				return token.type + ": " + token.value;
 			}
 			return localisation;
 		}
 	}
 
-	public static String localizeValue(Token token) {
-		ValueType type = getValueType(token);
+	public String localizeValue(Token token, RenderPlan plan) {
+		return localizeValue(token, plan, getValueType(token, plan));
+	}
+
+	private String localizeValue(Token token, RenderPlan plan, ValueType type) {
 		switch (type) {
 		case PROVINCE:
 			return getPrefixed("prov", token.value);
@@ -146,7 +267,9 @@ public class Localisation {
 		case DAYS:
 		case MONTHS:
 		case YEARS:
-			int val = Integer.parseInt(token.value);
+			if (!token.isNumber())
+				return token.value; // E.G. a scripted value
+			int val = (int) token.getNumber();
 			if (val == -1)
 				return "the rest of the campaign";
 			else if (type == ValueType.DAYS) {
@@ -160,12 +283,12 @@ public class Localisation {
 				return val + " " + type.toString().toLowerCase();
 		case COUNTRY:
 		case OTHER:
-			if (isCountry(token.value))
-				return getCountry(token.value);
-			else if (isLookup(token.value))
+			if (isCountry(token))
+				return getCountry(token);
+			else if (isLookup(token))
 				return findLocalisation(token.value);
-			else if (isPercentage(token))
-				return toPercentage(token.value);
+			else if (isPercentage(token, plan))
+				return toPercentage(token);
 			else
 				return token.value;
 		default:
@@ -178,22 +301,17 @@ public class Localisation {
 	 * @param token The token
 	 * @return Whether the token value should be formatted as a percentage
 	 */
-	private static boolean isPercentage(Token token) {
-		String statement = getStatement(token.type);
-		if (statement == null)
-			return false;
-		if (!number.matcher(token.value).matches())
-			return false;
-		return getStatement(token.type).contains("%%");
+	private static boolean isPercentage(Token token, RenderPlan plan) {
+		return plan.percentage && token.isNumber();
 	}
 	
 	/**
-	 * Turns a string into a percentage value
-	 * @param value The value
+	 * Turns a number into a percentage value
+	 * @param token The token whose value is a number
 	 * @return The value as a percentage
 	 */
-	private static String toPercentage(String value) {
-		float f = Float.parseFloat(value);
+	private static String toPercentage(Token token) {
+		float f = (float) token.getNumber();
 		f *= 100;
 		if (Math.abs(f) >= 1)
 			return "" + (int) f;
@@ -205,18 +323,18 @@ public class Localisation {
 	 * Determines whether the parser should try to look up a given token value
 	 * in the game localisation
 	 * 
-	 * @param value
-	 *            The token's value
+	 * @param token
+	 *            The token
 	 * @return Whether it should be looked up
 	 */
-	private static boolean isLookup(String value) {
-		if (value.contains(" "))
+	private static boolean isLookup(Token token) {
+		switch (token.kind) {
+		case INTEGER:
+		case DECIMAL:
+		case DATE:
 			return false;
-		try {
-			Float.parseFloat(value);
-			return false;
-		} catch (NumberFormatException e) {
-			return true;
+		default:
+			return !token.value.contains(" ");
 		}
 	}
 	
@@ -228,11 +346,27 @@ public class Localisation {
 	 * @return Whether it refers to a country
 	 */
 	private static boolean isCountry(String value) {
+		return isScope(value) || (country.matcher(value).matches() && !value.equals("yes"));
+	}
+
+	/**
+	 * Determines whether a given token's value refers to a country
+	 * 
+	 * @param token
+	 *            The token
+	 * @return Whether it refers to a country
+	 */
+	private static boolean isCountry(Token token) {
+		return token.kind == Kind.TAG
+				|| ((token.kind == Kind.STRING || token.kind == Kind.QUOTED) && isScope(token.value));
+	}
+
+	private static boolean isScope(String value) {
 		try {
 			Scope.valueOf(value.toUpperCase());
 			return true;
 		} catch (IllegalArgumentException e) {
-			return country.matcher(value).matches() && !value.equals("yes");
+			return false;
 		}
 	}
 
@@ -243,13 +377,19 @@ public class Localisation {
 	 *            The ID of the country
 	 * @return The country's name
 	 */
-	private static String getCountry(String id) {
+	private String getCountry(String id) {
 		if (country.matcher(id).matches())
 			return getLocalisation(id);
 		return Scope.valueOf(id.toUpperCase()).toString();
 	}
 
-	private static String getPrefixed(String prefix, String value) {
+	private String getCountry(Token token) {
+		if (token.kind == Kind.TAG)
+			return getLocalisation(token.value);
+		return Scope.valueOf(token.value.toUpperCase()).toString();
+	}
+
+	private String getPrefixed(String prefix, String value) {
 		return getLocalisation(prefix + value);
 	}
 
@@ -261,7 +401,7 @@ public class Localisation {
 	 * @return The localisation found. The key provided is returned if no
 	 *         localisation is found
 	 */
-	public static String findLocalisation(String key) {
+	public String findLocalisation(String key) {
 		String key2 = key.replace("\"", "");
 		String loc = getLocalisation(key2);
 		if (loc != null)
@@ -276,12 +416,12 @@ public class Localisation {
 	}
 	
 	/**
-	 * Looks up a string in the "localisation" map
+	 * Looks up a string in the game localisation
 	 * @param key The key to the string
 	 * @return The string found. Null if not found
 	 */
-	private static String getLocalisation(String key) {
-		return localisation.get(key.toLowerCase());
+	private String getLocalisation(String key) {
+		return localisation.get(key);
 	}
 	
 	/**
@@ -292,7 +432,7 @@ public class Localisation {
 	 * @return The localisation found, plus formatting. Null is
 	 *         returned if no localisation is found
 	 */
-	private static String getScopeLocalisation(Token token) {
+	private String getScopeLocalisation(Token token) {
 		String loc = null;
 		while (true) {
 			//if (regions.contains(token.type))
@@ -321,17 +461,17 @@ public class Localisation {
 		return loc;
 	}
 
-	private static ValueType getValueType(Token token) {
-		if (lookupRules.containsKey(token.type)) {
-			ValueType type = ValueType.valueOf(lookupRules.get(token.type).toUpperCase());
+	private static ValueType getValueType(Token token, RenderPlan plan) {
+		if (plan.lookupType != null) {
+			ValueType type = plan.lookupType;
 			switch (type) {
 			case COUNTRY:
-				if (!isCountry(token.value))
+				if (!isCountry(token))
 					type = ValueType.OTHER;
 				break;
 			case PROVINCE:
 			case STATE:
-				if (isCountry(token.value))
+				if (isCountry(token))
 					type = ValueType.COUNTRY;
 			default:
 				break;
@@ -349,7 +489,7 @@ public class Localisation {
 	 *            The token type
 	 * @return The format string. Null if not found
 	 */
-	private static String getStatement(String key) {
+	private String getStatement(String key) {
 		return statements.get(key.toLowerCase());
 	}
 	
@@ -358,17 +498,23 @@ public class Localisation {
 	 * @param token The token
 	 * @return Whether localisation is defined for it
 	 */
-	private static boolean hasStatement(String key) {
+	private boolean hasStatement(String key) {
 		return statements.containsKey(key);
 	}
 	
-	public static String formatString(String type, Operator operator, boolean inverted,
+	public String formatString(Token token, String type, Operator operator, boolean inverted,
 			String... values) {
-		if (inverted && !operatorTypes.contains(type))
+		Set<String> used = usedKeys.get();
+		if (used != null)
+			used.add(type); // Whether the statement has an operator decides the variant used
+		if (inverted && !operatorTypes.contains(type)) {
 			type += "_false";
+			if (used != null)
+				used.add(type);
+		}
 		String statement = getStatement(type);
 		if (statement == null) {
-			errors.add(type);
+			errors.record(type, token);
 			return statement;
 		}
 		if (statement.contains(OPERATOR))
@@ -376,16 +522,72 @@ public class Localisation {
 		return String.format(statement, (Object[]) values);
 	}
 
-	private static String insertOperator(String statement, Operator operator, boolean inverted) {
+	private String insertOperator(String statement, Operator operator, boolean inverted) {
 		if (inverted) // Opposite version is offset by one
 			operator = Operator.values()[operator.ordinal() + 1];
 		String out = statement.replace(OPERATOR, operators.get(operator.toString().toLowerCase()));
 		return out;
 	}
 	
-	private static boolean isParentException(Token token) {
-		String[] vals = parentExceptions.get(token.parent.type);
-		return vals != null && Arrays.asList(vals).contains(token.type);
+	private boolean isParentException(String parentType, String type) {
+		String[] vals = parentExceptions.get(parentType);
+		return vals != null && Arrays.asList(vals).contains(type);
+	}
+
+	/**
+	 * Gets the variation statement a given token type belongs to
+	 * 
+	 * @param type
+	 *            The token type
+	 * @return The variation statement. Null if the type is not a variation
+	 */
+	String getVariation(String type) {
+		return variations.get(type);
+	}
+
+	/**
+	 * Gets the lookup rule for a given token type
+	 * 
+	 * @param type
+	 *            The token type
+	 * @return How the type's values should be looked up. Null if no rule
+	 *         applies
+	 */
+	ValueType getLookupType(String type) {
+		String rule = lookupRules.get(type);
+		return rule == null ? null : ValueType.valueOf(rule.toUpperCase());
+	}
+
+	/**
+	 * Determines which statement a given token type uses within a given parent
+	 * 
+	 * @param parentType
+	 *            The type of the token's parent
+	 * @param type
+	 *            The token type
+	 * @param suffix
+	 *            Suffix of the statement variant, E.G. "_country". Empty for
+	 *            the plain statement
+	 * @return The statement key. Null if no statement is defined
+	 */
+	String getStatementType(String parentType, String type, String suffix) {
+		String key = type + suffix;
+		if (isParentException(parentType, type))
+			key = parentType + "_" + key;
+		return hasStatement(key) ? key : null;
+	}
+
+	/**
+	 * Determines whether the statement for a given token type displays its
+	 * value as a percentage
+	 * 
+	 * @param type
+	 *            The token type
+	 * @return Whether it does
+	 */
+	boolean isPercentageStatement(String type) {
+		String statement = getStatement(type);
+		return statement != null && statement.contains("%%");
 	}
 	
 	// TODO - Handle text highlighting. E.G., Ytrade!. Regex might be a good
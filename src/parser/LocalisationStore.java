@@ -0,0 +1,261 @@
+package parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable, compact map from localisation keys to localisation. Keys and
+ * values are stored as UTF-8 in a single direct (off-heap) buffer, and found
+ * through a minimal perfect hash built when the store is created, so the heap
+ * only holds two int arrays of roughly one int per entry each.
+ * <p>
+ * Keys are case-insensitive. Looking up a missing key allocates nothing; a
+ * found key allocates only the returned string. The store is safe to read
+ * from any number of threads.
+ */
+final class LocalisationStore {
+	/** Average number of keys per bucket of the perfect hash */
+	private static final int BUCKET_SIZE = 4;
+	/** Give up on a bucket after this many displacements */
+	private static final int MAX_DISPLACEMENT = 1 << 24;
+
+	/** Entries, each a key and a value, both as length-prefixed UTF-8 */
+	private final ByteBuffer data;
+	/** Displacement per bucket. Negative for single-key buckets, which store -(slot + 1) */
+	private final int[] displacements;
+	/** Offset into data of the entry in each slot */
+	private final int[] offsets;
+
+	private LocalisationStore(ByteBuffer data, int[] displacements, int[] offsets) {
+		this.data = data;
+		this.displacements = displacements;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Builds a store holding the contents of a map
+	 *
+	 * @param map
+	 *            The localisation to be stored. Keys are treated as lower case
+	 * @return The store
+	 */
+	static LocalisationStore of(Map<String, String> map) {
+		int size = map.size();
+		long[] hashes = new long[size];
+		byte[][] encoded = new byte[size * 2][];
+		int dataSize = 0;
+		int i = 0;
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			String key = toLowerCase(entry.getKey());
+			hashes[i] = hash(key);
+			encoded[2 * i] = key.getBytes(StandardCharsets.UTF_8);
+			encoded[2 * i + 1] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+			dataSize += 8 + encoded[2 * i].length + encoded[2 * i + 1].length;
+			i++;
+		}
+
+		int[] slots = new int[size];
+		int[] displacements = buildHash(hashes, slots);
+
+		ByteBuffer data = ByteBuffer.allocateDirect(dataSize);
+		int[] offsets = new int[size];
+		for (i = 0; i < size; i++) {
+			offsets[slots[i]] = data.position();
+			data.putInt(encoded[2 * i].length).put(encoded[2 * i]);
+			data.putInt(encoded[2 * i + 1].length).put(encoded[2 * i + 1]);
+		}
+		return new LocalisationStore(data, displacements, offsets);
+	}
+
+	/**
+	 * Builds a minimal perfect hash using hash and displace: keys are split
+	 * into buckets, and the buckets, largest first, are each given the first
+	 * displacement that places all their keys in free slots
+	 *
+	 * @param hashes
+	 *            Hash of each key
+	 * @param slots
+	 *            Filled with the slot given to each key
+	 * @return The displacement of each bucket
+	 */
+	private static int[] buildHash(long[] hashes, int[] slots) {
+		int size = hashes.length;
+		int bucketCount = size / BUCKET_SIZE + 1;
+		int[] displacements = new int[bucketCount];
+
+		// The keys of bucket b are members[starts[b]] to members[starts[b + 1] - 1]
+		int[] starts = new int[bucketCount + 1];
+		for (int i = 0; i < size; i++) {
+			starts[bucket(hashes[i], bucketCount) + 1]++;
+		}
+		int largest = 0;
+		for (int b = 0; b < bucketCount; b++) {
+			largest = Math.max(largest, starts[b + 1]);
+			starts[b + 1] += starts[b];
+		}
+		int[] members = new int[size];
+		int[] next = Arrays.copyOf(starts, bucketCount);
+		for (int i = 0; i < size; i++) {
+			members[next[bucket(hashes[i], bucketCount)]++] = i;
+		}
+
+		// Buckets largest first, by counting sort so that equal sizes keep their order
+		int[] sizeStarts = new int[largest + 2];
+		for (int b = 0; b < bucketCount; b++) {
+			sizeStarts[largest - (starts[b + 1] - starts[b]) + 1]++;
+		}
+		for (int i = 1; i < sizeStarts.length; i++) {
+			sizeStarts[i] += sizeStarts[i - 1];
+		}
+		int[] order = new int[bucketCount];
+		for (int b = 0; b < bucketCount; b++) {
+			order[sizeStarts[largest - (starts[b + 1] - starts[b])]++] = b;
+		}
+
+		boolean[] taken = new boolean[size];
+		int[] candidate = new int[largest];
+		int nextFree = 0;
+		for (int bucketIndex : order) {
+			int first = starts[bucketIndex];
+			int bucketSize = starts[bucketIndex + 1] - first;
+			if (bucketSize == 0)
+				continue;
+			if (bucketSize == 1) {
+				// Any free slot will do, so no displacement need be searched for
+				while (taken[nextFree])
+					nextFree++;
+				taken[nextFree] = true;
+				slots[members[first]] = nextFree;
+				displacements[bucketIndex] = -nextFree - 1;
+				continue;
+			}
+			for (int displacement = 0;; displacement++) {
+				if (displacement == MAX_DISPLACEMENT)
+					throw new IllegalStateException("Unable to build perfect hash; duplicate key hashes");
+				int placed = 0;
+				for (int j = first; j < first + bucketSize; j++) {
+					int slot = slot(hashes[members[j]], displacement, size);
+					if (taken[slot])
+						break;
+					taken[slot] = true;
+					candidate[placed++] = slot;
+				}
+				if (placed == bucketSize) {
+					for (int j = 0; j < placed; j++) {
+						slots[members[first + j]] = candidate[j];
+					}
+					displacements[bucketIndex] = displacement;
+					break;
+				}
+				for (int j = 0; j < placed; j++) {
+					taken[candidate[j]] = false;
+				}
+			}
+		}
+		return displacements;
+	}
+
+	/**
+	 * Looks up a key
+	 *
+	 * @param key
+	 *            The key, in any case
+	 * @return The localisation found. Null if not found
+	 */
+	String get(String key) {
+		if (offsets.length == 0)
+			return null;
+		long hash = hash(key);
+		int displacement = displacements[bucket(hash, displacements.length)];
+		int slot = displacement < 0 ? -displacement - 1 : slot(hash, displacement, offsets.length);
+		int offset = offsets[slot];
+		int keyLength = data.getInt(offset);
+		if (!keyEquals(offset + 4, keyLength, key))
+			return null;
+		int valueOffset = offset + 4 + keyLength;
+		byte[] value = new byte[data.getInt(valueOffset)];
+		// A duplicate has its own position, so threads don't disturb each other
+		ByteBuffer view = data.duplicate();
+		view.position(valueOffset + 4);
+		view.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compares a stored UTF-8 key with a key being looked up, ignoring case,
+	 * without decoding the stored key into a string
+	 */
+	private boolean keyEquals(int offset, int length, String key) {
+		int end = offset + length;
+		int i = 0;
+		while (offset < end) {
+			int b = data.get(offset++) & 0xFF;
+			int codePoint;
+			if (b < 0x80)
+				codePoint = b;
+			else if (b < 0xE0)
+				codePoint = (b & 0x1F) << 6 | data.get(offset++) & 0x3F;
+			else if (b < 0xF0) {
+				codePoint = (b & 0x0F) << 12 | (data.get(offset++) & 0x3F) << 6 | data.get(offset++) & 0x3F;
+			} else {
+				codePoint = (b & 0x07) << 18 | (data.get(offset++) & 0x3F) << 12
+						| (data.get(offset++) & 0x3F) << 6 | data.get(offset++) & 0x3F;
+			}
+			if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				if (i >= key.length() || Character.toLowerCase(key.charAt(i++)) != codePoint)
+					return false;
+			} else {
+				if (i + 1 >= key.length() || key.charAt(i++) != Character.highSurrogate(codePoint)
+						|| key.charAt(i++) != Character.lowSurrogate(codePoint))
+					return false;
+			}
+		}
+		return i == key.length();
+	}
+
+	/**
+	 * Lower-cases a key one char at a time, the same way lookups do
+	 */
+	private static String toLowerCase(String key) {
+		char[] chars = key.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a key, ignoring case
+	 */
+	private static long hash(String key) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= Character.toLowerCase(key.charAt(i));
+			hash *= 0x100000001B3L;
+		}
+		return mix(hash);
+	}
+
+	private static int bucket(long hash, int buckets) {
+		return (int) ((hash >>> 32) % buckets);
+	}
+
+	private static int slot(long hash, int displacement, int slots) {
+		return (int) ((mix(hash + displacement * 0x9E3779B97F4A7C15L) >>> 1) % slots);
+	}
+
+	/**
+	 * Finalizer from MurmurHash3, so that every bit of the input affects every
+	 * bit of the output
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
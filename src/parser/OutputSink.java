@@ -0,0 +1,38 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Where rendered files are written: a folder, or a single zip archive. Files
+ * may be written from several threads at once
+ */
+public interface OutputSink extends Closeable {
+	/**
+	 * Writes a file
+	 * 
+	 * @param name
+	 *            The file's name, E.G. "errors.txt". May lie in a subfolder,
+	 *            E.G. "flavor/France.txt"
+	 * @param contents
+	 *            The file's lines
+	 * @throws IOException
+	 */
+	void write(String name, Collection<String> contents) throws IOException;
+
+	/**
+	 * Opens a sink
+	 * 
+	 * @param path
+	 *            A folder, or a file ending in .zip to write a zip archive
+	 * @return The sink
+	 * @throws IOException
+	 */
+	static OutputSink open(Path path) throws IOException {
+		if (path.getFileName().toString().toLowerCase().endsWith(".zip"))
+			return new ZipSink(path);
+		return new DirectorySink(path);
+	}
+}
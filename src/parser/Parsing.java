@@ -1,71 +1,100 @@
 package parser;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import parser.Localisation.Operator;
+import parser.Token.Kind;
 
 public class Parsing {
-	private static final Map<String, String[]> namedBlocks = new HashMap<>();
-	private static final Map<String, String[]> multiTokenExpressions = new HashMap<>();
-	private static final Map<String, Iterable<String>> modifiers = new HashMap<>();
+	private static void parseTree(GameContext context, Token token, List<String> output,
+			int nesting, boolean inverted, TreeInterner interner) {
+		if (interner == null || !interner.isShared(token)) {
+			renderTree(context, token, output, nesting, inverted, interner);
+			return;
+		}
+		// Identical blocks render identically, so only the first copy need be rendered
+		ErrorLog errors = context.getLocalisation().getErrors();
+		TreeInterner.Rendering rendering = interner.getRendered(token, nesting, inverted);
+		if (rendering == null) {
+			List<String> lines = new LinkedList<>();
+			List<ErrorLog.Recorded> outer = errors.startCapture();
+			List<ErrorLog.Recorded> recorded;
+			try {
+				renderTree(context, token, lines, nesting, inverted, interner);
+			} finally {
+				recorded = errors.endCapture(outer);
+			}
+			rendering = interner.putRendered(token, nesting, inverted, lines, recorded);
+		} else
+			errors.replay(rendering.errors); // Later copies need the same keys, so count them too
+		output.addAll(rendering.lines);
+	}
 
-	private static void parseTree(Token token, List<String> output,
-			int nesting, boolean inverted) {
+	private static void renderTree(GameContext context, Token token, List<String> output,
+			int nesting, boolean inverted, TreeInterner interner) {
 		String out = null;
 		boolean toOutput = true;
+		Token name = null; // Output as part of this token, so skipped among its children
 		
-		if (token.disabled)
-			return; // Skip this sub-tree
-		
-		if (isInversion(token.type)) {
+		// Shared tokens are rendered more than once, so inversion is always assigned afresh
+		RenderPlan plan = context.getPlan(token);
+		boolean tokenInverted = false;
+		if (plan.inversion) {
 			inverted = !inverted;
-			token.inverted = inverted;
+			tokenInverted = inverted;
 			nesting--;
 			toOutput = false;
 		}
 		else if (inverted) {
-			token.inverted = true;
+			tokenInverted = true;
 			inverted = false; // Never persists past more than one level
 		}
-		if (token.value != null && token.value.equals("no"))
-			token.inverted = !token.inverted;
+		if (token.kind == Kind.BOOLEAN && token.scalar == 0)
+			tokenInverted = !tokenInverted;
+		token.inverted = tokenInverted;
 		
 		if (nesting == -1)
 			out = "";
 		else if (nesting == 0) {
 			if (isBlock(token))
-				out = localize(findName(token));
+				out = localize(context, name = findName(token, plan));
 			else
 				out = "";
 		} else if (nesting == 1 && !isBlock(token))
 			out = "";
-		else if (isMultiTokenExpression(token)) {
-			outputMultiLineCommand(token, output, nesting);
+		else if (plan.expressionTypes != null && isBlock(token)) {
+			outputMultiLineCommand(context, token, plan, output, nesting);
 			return; // Handles its own children
-		} else if (isNamedBlock(token))
-			out = localize(findName(token));
+		} else if (plan.nameTypes != null && isBlock(token))
+			out = localize(context, name = findName(token, plan));
+		else if (!isBlock(token))
+			out = context.localizeLeaf(token, plan);
 		else
-			out = localize(token);
+			out = context.getLocalisation().localize(token, plan);
 		
 		if (toOutput)
 			output(out, output, nesting);
 		
 		for (Token child : token.children) {
-			parseTree(child, output, nesting + 1, inverted);
+			if (child == name)
+				name = null; // Only skip it once, as identical children may be shared
+			else
+				parseTree(context, child, output, nesting + 1, inverted, interner);
 		}
 	}
 
-	private static void outputMultiLineCommand(Token token, List<String> output, int nesting) {
-		String[] associatedTypes = multiTokenExpressions.get(token.type);
+	private static void outputMultiLineCommand(GameContext context, Token token, RenderPlan plan,
+			List<String> output, int nesting) {
+		Localisation localisation = context.getLocalisation();
+		String[] associatedTypes = plan.expressionTypes;
 		int length = associatedTypes.length;
 		List<String> values = new LinkedList<>();
 		
@@ -78,18 +107,18 @@ public class Parsing {
 			String target = associatedTypes[i];
 			
 			for (Token child : token.children) {
+				RenderPlan childPlan = context.getPlan(child);
 				if (child.type.equals(target)) {
-					values.add(localizeValue(child));
+					values.add(localisation.localizeValue(child, childPlan));
 					if (child.operator != Operator.EQUAL)
 						operator = child.operator;
 					if (isModifier(child))
 						modifierName = child.value;
 					found = true;
-				} else if (Localisation.variations.containsKey(child.type)) {
-					String variationName = Localisation.variations.get(child.type);
-					if (variationName.equals(target)) {
-						values.add(Localisation.findLocalisation(child.type));
-						values.add(localizeValue(child));
+				} else if (childPlan.variation != null) {
+					if (childPlan.variation.equals(target)) {
+						values.add(localisation.findLocalisation(child.type));
+						values.add(localisation.localizeValue(child, childPlan));
 					}
 					found = true;
 				}
@@ -99,10 +128,13 @@ public class Parsing {
 				values.add("the rest of the campaign");
 		}
 		
-		output(Localisation.formatString(token.type, operator, token.inverted, (String []) values.toArray(new String[values.size()])),
+		output(localisation.formatString(token, token.type, operator, token.inverted, (String []) values.toArray(new String[values.size()])),
 				output, nesting);
 		if (modifierName != null) {
-			Iterable<String> effects = modifiers.get(modifierName);
+			Set<String> used = Localisation.usedKeys.get();
+			if (used != null)
+				used.add(GameContext.MODIFIER_KEY + modifierName);
+			Iterable<String> effects = context.getModifierEffects(modifierName);
 			if (effects != null)
 				for (String effect : effects) {
 					output(effect, output, nesting + 1);
@@ -115,20 +147,25 @@ public class Parsing {
 		return child.type.equals("name");
 	}
 
-	private static String localizeValue(Token token) {
-		return Localisation.localizeValue(token);
-	}
-
-	private static String localize(Token token) {
-		return Localisation.localize(token);
+	private static String localize(GameContext context, Token token) {
+		return context.getLocalisation().localize(token, context.getPlan(token));
 	}
 
-	private static Token findName(Token token) {
-		String[] nameTokens = namedBlocks.get(token.type);
+	/**
+	 * Finds the child that names a block
+	 * 
+	 * @param token
+	 *            The block
+	 * @param plan
+	 *            The block's render plan
+	 * @return The child. The block itself if it has none
+	 */
+	private static Token findName(Token token, RenderPlan plan) {
+		String[] nameTokens = plan.nameTypes;
 		for (String string : nameTokens) {
 			for (Token child : token.children) {
 				if (string.equals(child.type)) {
-					child.disabled = true;
+					child.inverted = false; // Names are never rendered as children
 					return child;
 				}
 			}
@@ -142,28 +179,6 @@ public class Parsing {
 		return token.children.size() > 0;
 	}
 	
-	private static boolean isNamedBlock(Token token) {
-		return isBlock(token) && namedBlocks.containsKey(token.type);
-	}
-	
-	private static boolean isMultiTokenExpression(Token token) {
-		return isBlock(token) && multiTokenExpressions.containsKey(token.type);
-	}
-	
-	private static final Set<String> NEGATIONS = new HashSet<String>(Arrays.asList(new String[] {
-			"not", "nor" }));
-
-	/**
-	 * Determines whether a section inverts everything within it
-	 * 
-	 * @param type
-	 *            The section name
-	 * @return Whether it inverts everything within it
-	 */
-	private static boolean isInversion(String type) {
-		return NEGATIONS.contains(type.toLowerCase());
-	}
-
 	private static final String HEADER = "\n== %s ==";
 	private static final String BOLD = "\n'''%s'''\n";
 	
@@ -202,57 +217,156 @@ public class Parsing {
 		output.add(builder.toString());
 	}
 	
-	/**
-	 * Reads all event modifiers and converts them to human-readable text, so
-	 * that they can be displayed when a modifier is added
-	 * 
-	 * @param readFile
-	 *            A formatted file containing modifiers
-	 */
-	private static void parseModifiers(Token root) {
-		for (Token child : root.children) {
-			List<String> effects = new LinkedList<>();
-			String name = child.type;
-			for (Token child2 : child.children) {
-				String s = localize(child2);
-				if (s.charAt(0) >= '0' && s.charAt(0) <= '9')
-					s = "+" + s;
-				effects.add(s);
-			}
-			modifiers.put(name, effects);
-		}
-	}
-
 	public static void main(String[] args) throws IOException {
 		HashMap<String, String> settings = new HashMap<>();
 		IO.readLocalisation("settings.txt", settings);
-		String path = settings.get("path");
 		String game = settings.get("game").toLowerCase();
+		boolean dedupe = "yes".equalsIgnoreCase(settings.get("dedupe"));
+		String output = settings.get("output");
+		if (output == null || output.isEmpty())
+			output = "output";
 		
-		Localisation.initialize(path, game);
-		
-		IO.readExceptions(String.format("statements/%s/namedSections.txt", game), namedBlocks);
-		IO.readExceptions(String.format("statements/%s/exceptions.txt", game), multiTokenExpressions);
-		if (game.equals("eu4"))
-			parseModifiers(Token.tokenize(IO.readFile(path 
-				+ "/common/event_modifiers/00_event_modifiers.txt")));
-		
-		Files.walk(Paths.get(path + "/events")).forEachOrdered(filePath -> {
-			if (Files.isRegularFile(filePath)) {
-				System.out.println("Parsing " + filePath.getFileName());
-				try {
-					List<String> list = IO.readFile(filePath.toString());
-					Token root = Token.tokenize(list);
-					List<String> output = new LinkedList<>();
-					parseTree(root, output, -1, false);
-					// TODO - Ensure output folder exists
-					IO.writeFile("output/" + filePath.getFileName(), output);
-				} catch (IOException e) {
-					e.printStackTrace();
+		try (VirtualFileSystem files = VirtualFileSystem.create(settings)) {
+			if (Arrays.asList(args).contains("watch")) {
+				// Files are rewritten as rules change, so watching always writes to a folder
+				if (output.toLowerCase().endsWith(".zip")) {
+					System.out.println("Watching writes to a folder; writing to \"output\" instead of " + output);
+					output = "output";
 				}
+				new Watcher(files, game, Paths.get(output), dedupe).watch();
+			} else {
+				GameContext context = GameContext.load(files, game);
+				try (OutputSink sink = OutputSink.open(Paths.get(output))) {
+					run(context, files, sink, dedupe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses every event in a game, writing one output file per event file
+	 * plus a list of everything that could not be localised
+	 * 
+	 * @param files
+	 *            The game's files
+	 * @param game
+	 *            Which game's statements to use, E.G. "eu4"
+	 * @param outputFolder
+	 *            Folder the output is written to. Created if missing
+	 * @throws IOException
+	 */
+	public static void run(VirtualFileSystem files, String game, Path outputFolder) throws IOException {
+		GameContext context = GameContext.load(files, game);
+		try (OutputSink sink = new DirectorySink(outputFolder)) {
+			run(context, files, sink, false);
+		}
+	}
+
+	/**
+	 * Parses every event in a game using an already loaded context, rendering
+	 * event files in parallel. Contexts are independent, so several runs may
+	 * also take place at the same time
+	 * 
+	 * @param context
+	 *            The game's localisation and rules
+	 * @param files
+	 *            The game's files
+	 * @param sink
+	 *            Where the output is written
+	 * @param dedupe
+	 *            Whether identical subtrees are stored and rendered only once
+	 *            per file
+	 * @throws IOException
+	 */
+	public static void run(GameContext context, VirtualFileSystem files, OutputSink sink, boolean dedupe)
+			throws IOException {
+		files.listFiles("events").parallelStream().forEach(filePath -> {
+			System.out.println("Parsing " + filePath.getFileName());
+			try {
+				renderFile(context, files, filePath, sink, dedupe);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		});
-		IO.writeFile("output/errors.txt", Localisation.errors);
+		sink.write("errors.txt", context.getLocalisation().getErrors().getReport());
+	}
+
+	/**
+	 * Parses a single event file and writes its output
+	 * 
+	 * @param context
+	 *            The game's localisation and rules
+	 * @param files
+	 *            The game's files
+	 * @param filePath
+	 *            The event file
+	 * @param sink
+	 *            Where the output is written
+	 * @param dedupe
+	 *            Whether identical subtrees are stored and rendered only once
+	 * @throws IOException
+	 */
+	static void renderFile(GameContext context, VirtualFileSystem files, Path filePath, OutputSink sink,
+			boolean dedupe) throws IOException {
+		TreeInterner interner = dedupe ? new TreeInterner() : null;
+		Token root = readTree(files, filePath, interner);
+		sink.write(getOutputName(files, filePath), render(context, root, interner));
+	}
+
+	/**
+	 * Names an event file's output by its path within the events folder, so
+	 * files of the same name in different subfolders don't overwrite each
+	 * other
+	 * 
+	 * @param files
+	 *            The game's files
+	 * @param filePath
+	 *            The event file
+	 * @return E.G. "flavor/France.txt" for "events/flavor/France.txt"
+	 */
+	static String getOutputName(VirtualFileSystem files, Path filePath) {
+		String relativePath = files.getRelativePath(filePath);
+		return relativePath.substring(relativePath.indexOf('/') + 1);
+	}
+
+	/**
+	 * Reads and tokenizes an event file. Its tokens are given the file's path
+	 * relative to the game folder, so errors are reported by it
+	 * 
+	 * @param files
+	 *            The game's files
+	 * @param filePath
+	 *            The event file
+	 * @param interner
+	 *            Used to store identical subtrees only once. Null to keep
+	 *            every copy
+	 * @return The root token
+	 * @throws IOException
+	 */
+	static Token readTree(VirtualFileSystem files, Path filePath, TreeInterner interner) throws IOException {
+		List<Integer> lineNumbers = new ArrayList<>();
+		List<String> list = IO.readFile(filePath, lineNumbers);
+		return Token.tokenize(files.getRelativePath(filePath), list, lineNumbers, interner);
+	}
+
+	/**
+	 * Renders a tokenized event file. The same tree may be rendered again,
+	 * E.G. with different rules, but not by two threads at once
+	 * 
+	 * @param context
+	 *            The game's localisation and rules
+	 * @param root
+	 *            The root token of the file
+	 * @param interner
+	 *            The interner the tree was built with. Null if none
+	 * @return The output lines
+	 */
+	static List<String> render(GameContext context, Token root, TreeInterner interner) {
+		if (interner != null)
+			interner.clearRendered(); // May have been rendered with other rules
+		List<String> output = new LinkedList<>();
+		parseTree(context, root, output, -1, false, interner);
+		return output;
 	}
 
 	// TODO - Properly handle calling other events
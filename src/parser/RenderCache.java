@@ -0,0 +1,199 @@
+package parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+import parser.Localisation.Operator;
+
+/**
+ * A bounded cache of rendered leaf statements, such as "prestige = 1", which
+ * repeat thousands of times across the event files. A leaf's rendering only
+ * depends on its parent's type, its type, operator and value, and whether it
+ * is inverted, so those make up the key. Each entry may also hold the
+ * statement keys its rendering used, so that a hit can still record them, and
+ * so that entries can outlive a change to unrelated rules.
+ * <p>
+ * The cache is split into segments, each an access-ordered map guarded by its
+ * own lock, so that threads rarely contend. Each segment evicts its least
+ * recently used entry once full.
+ */
+final class RenderCache {
+	private static final int SEGMENT_BITS = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * A rendered statement and the statement keys used to render it, besides
+	 * those of its render plan
+	 */
+	static final class Rendered {
+		final String rendered;
+		/** Null if they weren't recorded */
+		final String[] ruleKeys;
+
+		Rendered(String rendered, String[] ruleKeys) {
+			this.rendered = rendered;
+			this.ruleKeys = ruleKeys;
+		}
+	}
+
+	private static final class Segment extends LinkedHashMap<Key, Rendered> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Rendered> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param capacity
+	 *            The most entries the cache will hold
+	 */
+	RenderCache(int capacity) {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+		}
+	}
+
+	/**
+	 * Creates the key for a leaf token
+	 *
+	 * @param token
+	 *            The token, which must have no children
+	 * @return The key
+	 */
+	static Key keyOf(Token token) {
+		return new Key(token.parent == null ? "" : token.parent.type, token.type, token.operator,
+				token.value, token.inverted);
+	}
+
+	/**
+	 * Looks up a rendered statement, counting the hit or miss
+	 *
+	 * @param key
+	 *            The statement's key
+	 * @return The rendered statement. Null if not cached
+	 */
+	Rendered get(Key key) {
+		Segment segment = segmentFor(key);
+		Rendered rendered;
+		synchronized (segment) {
+			rendered = segment.get(key);
+		}
+		if (rendered == null)
+			misses.increment();
+		else
+			hits.increment();
+		return rendered;
+	}
+
+	void put(Key key, Rendered rendered) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, rendered);
+		}
+	}
+
+	/**
+	 * Copies every entry of another cache whose rule keys were recorded and
+	 * none of which have changed
+	 *
+	 * @param other
+	 *            A cache for an older version of the same rules
+	 * @param changedKeys
+	 *            The rule keys that differ between the versions
+	 * @param planChanged
+	 *            Whether the render plan for a parent type and type changed
+	 */
+	void putUnaffected(RenderCache other, Set<String> changedKeys, BiPredicate<String, String> planChanged) {
+		for (Segment segment : other.segments) {
+			synchronized (segment) {
+				entries: for (Map.Entry<Key, Rendered> entry : segment.entrySet()) {
+					Key key = entry.getKey();
+					if (entry.getValue().ruleKeys == null || planChanged.test(key.parentType, key.type))
+						continue;
+					for (String ruleKey : entry.getValue().ruleKeys) {
+						if (changedKeys.contains(ruleKey))
+							continue entries;
+					}
+					put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	private Segment segmentFor(Key key) {
+		// Each segment's map uses the low bits of the hash, so the segment is picked by mixing in the high ones
+		return segments[(key.hash * 0x9E3779B9) >>> (32 - SEGMENT_BITS)];
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return String.format("Render cache: %d hits, %d misses (%.1f%% hit rate)", hits, total - hits,
+				total == 0 ? 0 : 100.0 * hits / total);
+	}
+
+	static final class Key {
+		private final String parentType, type, value;
+		private final Operator operator;
+		private final boolean inverted;
+		private final int hash;
+
+		private Key(String parentType, String type, Operator operator, String value, boolean inverted) {
+			this.parentType = parentType;
+			this.type = type;
+			this.operator = operator;
+			this.value = value;
+			this.inverted = inverted;
+			// Computed by hand, as Objects.hash would allocate an array on every lookup
+			int hash = parentType.hashCode();
+			hash = 31 * hash + type.hashCode();
+			hash = 31 * hash + (operator == null ? 0 : operator.ordinal() + 1);
+			hash = 31 * hash + (value == null ? 0 : value.hashCode());
+			this.hash = 31 * hash + (inverted ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return hash == other.hash && inverted == other.inverted && operator == other.operator
+					&& type.equals(other.type) && parentType.equals(other.parentType)
+					&& Objects.equals(value, other.value);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package parser;
+
+import parser.Localisation.ValueType;
+
+/**
+ * Everything the rule files say about how to render a token of a given type
+ * within a block of a given type. Plans are compiled once per (parent type,
+ * type) pair, so rendering a token takes a single lookup rather than one
+ * lookup per rule file.
+ */
+final class RenderPlan {
+	/** Whether the section inverts everything within it */
+	final boolean inversion;
+	/** Types of the children holding the block's name. Null if not a named block */
+	final String[] nameTypes;
+	/** Types of the children making up a multi-token expression. Null if not one */
+	final String[] expressionTypes;
+	/** The variation statement the type belongs to. Null if none */
+	final String variation;
+	/** How the value should be looked up. Null if no lookup rule applies */
+	final ValueType lookupType;
+	/** Key of the statement to use. Null if no statement is defined */
+	final String statement;
+	/** Key of the statement to use when the value is a country. Null if none */
+	final String countryStatement;
+	/** Whether numeric values are displayed as percentages */
+	final boolean percentage;
+
+	RenderPlan(boolean inversion, String[] nameTypes, String[] expressionTypes, String variation,
+			ValueType lookupType, String statement, String countryStatement, boolean percentage) {
+		this.inversion = inversion;
+		this.nameTypes = nameTypes;
+		this.expressionTypes = expressionTypes;
+		this.variation = variation;
+		this.lookupType = lookupType;
+		this.statement = statement;
+		this.countryStatement = countryStatement;
+		this.percentage = percentage;
+	}
+}
@@ -0,0 +1,318 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Generates a synthetic game folder that the parser can be run on, for use
+ * when the actual game files aren't available. The statements used are taken
+ * from the parser's own statement files, so the output exercises the same
+ * code paths as the real game does. At scale 1 the folder is roughly the size
+ * of the base game; other scales multiply the number of event files and
+ * localisation keys.
+ */
+public class SyntheticGame {
+	// Sizes at scale 1
+	private static final int EVENT_FILES = 300;
+	private static final int EVENTS_PER_FILE = 20;
+	private static final int LOCALISATION_KEYS = 100000;
+	private static final int MODIFIERS = 500;
+	private static final int VARIATION_HEADERS = 40;
+	private static final int KEYS_PER_LOCALISATION_FILE = 10000;
+
+	private static final String[] TAGS = { "FRA", "ENG", "CAS", "POR", "TUR", "MOS", "SWE", "DAN",
+			"HAB", "BRA", "POL", "VEN", "MAM", "MNG", "MUG", "ADU" };
+
+	private final String game;
+	private final int scale;
+	private final Random random;
+	/** Leaf conditions with both a normal and a "_false" statement */
+	private final List<String> conditions = new ArrayList<>();
+	/** Leaf commands */
+	private final List<String> commands = new ArrayList<>();
+	/** Types of modifier effects */
+	private final List<String> modifierTypes = new ArrayList<>();
+	/** Statements taking a value, by type */
+	private final Map<String, String> takesValue = new HashMap<>();
+	private final Map<String, String> lookupRules = new HashMap<>();
+	/** Header names read as variations, by variation statement */
+	private final Map<String, List<String>> variations = new TreeMap<>();
+
+	private SyntheticGame(String game, int scale, long seed) throws IOException {
+		this.game = game;
+		this.scale = scale;
+		this.random = new Random(seed);
+
+		Map<String, String[]> excluded = new HashMap<>();
+		IO.readExceptions(String.format("statements/%s/exceptions.txt", game), excluded);
+		IO.readExceptions(String.format("statements/%s/namedSections.txt", game), excluded);
+		IO.readLookupRules(String.format("statements/%s/lookupRules.txt", game), lookupRules);
+
+		Map<String, String> statements = readStatements("conditions");
+		for (String type : statements.keySet()) {
+			if (isLeaf(type, statements, excluded) && statements.containsKey(type + "_false"))
+				conditions.add(type);
+		}
+		statements = readStatements("commands");
+		for (String type : statements.keySet()) {
+			if (isLeaf(type, statements, excluded))
+				commands.add(type);
+		}
+		statements = readStatements("modifiers");
+		for (String type : statements.keySet()) {
+			if (isLeaf(type, statements, excluded))
+				modifierTypes.add(type);
+		}
+	}
+
+	private Map<String, String> readStatements(String file) throws IOException {
+		Map<String, String> statements = new TreeMap<>();
+		Path path = Paths.get(String.format("statements/%s/localisation/%s.txt", game, file));
+		if (Files.isRegularFile(path))
+			IO.readLocalisation(path, statements);
+		return statements;
+	}
+
+	/**
+	 * Determines whether a statement can be used as a simple "type = value"
+	 * line, I.E. it takes at most one value and isn't handled specially
+	 */
+	private boolean isLeaf(String type, Map<String, String> statements, Map<String, String[]> excluded) {
+		String statement = statements.get(type);
+		if (type.endsWith("_false") || type.endsWith("_country") || excluded.containsKey(type)
+				|| statement.endsWith(":") || statement.contains("$"))
+			return false;
+		int values = statement.split("%s", -1).length - 1;
+		if (values > 1)
+			return false;
+		if (values == 1)
+			takesValue.put(type, statement);
+		return true;
+	}
+
+	/**
+	 * Generates a synthetic game folder
+	 *
+	 * @param folder
+	 *            Folder to generate the game in
+	 * @param game
+	 *            Which game's statements to use, E.G. "eu4"
+	 * @param scale
+	 *            Size of the game relative to the base game
+	 * @param seed
+	 *            Seed for the random contents. The same seed always gives the
+	 *            same files
+	 * @throws IOException
+	 */
+	public static void generate(Path folder, String game, int scale, long seed) throws IOException {
+		SyntheticGame generator = new SyntheticGame(game, scale, seed);
+		List<String> localisation = new ArrayList<>();
+		generator.writeVariations(folder);
+		generator.writeModifiers(folder, localisation);
+		generator.writeEvents(folder, localisation);
+		generator.writeLocalisation(folder, localisation);
+	}
+
+	/**
+	 * Writes the files the variation statements read their headers from
+	 */
+	private void writeVariations(Path folder) throws IOException {
+		Map<String, String> variationFiles = new TreeMap<>();
+		IO.readLocalisation(String.format("statements/%s/variations.txt", game), variationFiles);
+		for (Map.Entry<String, String> entry : variationFiles.entrySet()) {
+			if (entry.getKey().startsWith("#"))
+				continue;
+			String[] params = entry.getValue().split(", ");
+			String relativePath = params[0].replaceFirst("^/", "");
+			if (!relativePath.endsWith(".txt"))
+				relativePath += "/00_synthetic.txt";
+			int level = Integer.parseInt(params[1]);
+
+			List<String> headers = new ArrayList<>();
+			List<String> lines = new ArrayList<>();
+			for (int i = 0; i < level; i++) {
+				lines.add("synthetic_group_" + i + " = {");
+			}
+			for (int i = 0; i < VARIATION_HEADERS; i++) {
+				String header = "synthetic_" + entry.getKey() + "_" + i;
+				headers.add(header);
+				lines.add(header + " = {");
+				lines.add("value = " + random.nextInt(10));
+				lines.add("}");
+			}
+			for (int i = 0; i < level; i++) {
+				lines.add("}");
+			}
+			variations.put(entry.getKey(), headers);
+			write(folder.resolve(relativePath), lines);
+		}
+	}
+
+	private void writeModifiers(Path folder, List<String> localisation) throws IOException {
+		if (!game.equals("eu4") || modifierTypes.isEmpty())
+			return;
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < MODIFIERS; i++) {
+			String name = "synthetic_modifier_" + i;
+			localisation.add(name);
+			lines.add(name + " = {");
+			for (int j = 1 + random.nextInt(3); j > 0; j--) {
+				lines.add(pick(modifierTypes) + " = " + (random.nextInt(40) - 10) / 100f);
+			}
+			lines.add("}");
+		}
+		write(folder.resolve("common/event_modifiers/00_event_modifiers.txt"), lines);
+	}
+
+	private void writeEvents(Path folder, List<String> localisation) throws IOException {
+		for (int file = 0; file < EVENT_FILES * scale; file++) {
+			String namespace = "synthetic_" + file;
+			List<String> lines = new ArrayList<>();
+			lines.add("namespace = " + namespace);
+			for (int event = 1; event <= EVENTS_PER_FILE; event++) {
+				String id = namespace + "." + event;
+				localisation.add(id + ".t");
+				localisation.add(id + ".d");
+				lines.add("country_event = {");
+				lines.add("id = " + id);
+				lines.add("title = " + id + ".t");
+				lines.add("desc = " + id + ".d");
+				lines.add("trigger = {");
+				addConditions(lines, 2 + random.nextInt(8));
+				lines.add("}");
+				lines.add("mean_time_to_happen = {");
+				lines.add("months = " + (12 * (1 + random.nextInt(20))));
+				for (int i = random.nextInt(3); i > 0; i--) {
+					lines.add("modifier = {");
+					lines.add("factor = " + (1 + random.nextInt(4)) / 2f);
+					addConditions(lines, 1 + random.nextInt(2));
+					lines.add("}");
+				}
+				lines.add("}");
+				for (int option = 0, options = 1 + random.nextInt(3); option < options; option++) {
+					localisation.add(id + "." + (char) ('a' + option));
+					lines.add("option = {");
+					lines.add("name = " + id + "." + (char) ('a' + option));
+					addCommands(lines, 1 + random.nextInt(6));
+					lines.add("ai_chance = {");
+					lines.add("factor = " + (1 + random.nextInt(100)));
+					lines.add("}");
+					lines.add("}");
+				}
+				lines.add("}");
+			}
+			write(folder.resolve(String.format("events/synthetic_%05d.txt", file)), lines);
+		}
+	}
+
+	private void addConditions(List<String> lines, int count) {
+		for (int i = 0; i < count && !conditions.isEmpty(); i++) {
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				lines.add("NOT = {");
+				lines.add(leaf(pick(conditions), false));
+				lines.add("}");
+			} else if (kind == 1 && !variations.isEmpty()) {
+				List<String> names = new ArrayList<>(variations.keySet());
+				String variation = names.get(random.nextInt(names.size()));
+				lines.add(pick(variations.get(variation)) + " = " + (1 + random.nextInt(5)));
+			} else
+				lines.add(leaf(pick(conditions), true));
+		}
+	}
+
+	private void addCommands(List<String> lines, int count) {
+		for (int i = 0; i < count && !commands.isEmpty(); i++) {
+			if (random.nextInt(10) == 0 && game.equals("eu4")) {
+				lines.add("add_country_modifier = {");
+				lines.add("name = synthetic_modifier_" + random.nextInt(MODIFIERS));
+				lines.add("duration = " + 365 * (1 + random.nextInt(10)));
+				lines.add("}");
+			} else
+				lines.add(leaf(pick(commands), false));
+		}
+	}
+
+	/**
+	 * Creates a "type = value" line with a value suited to the statement
+	 *
+	 * @param type
+	 *            The statement's type
+	 * @param mayNegate
+	 *            Whether a yes/no statement may be given "no"
+	 */
+	private String leaf(String type, boolean mayNegate) {
+		if (!takesValue.containsKey(type))
+			return type + " = " + (mayNegate && random.nextInt(4) == 0 ? "no" : "yes");
+		String rule = lookupRules.get(type);
+		String value;
+		if (rule == null) {
+			switch (random.nextInt(3)) {
+			case 0:
+				value = pick(TAGS);
+				break;
+			case 1:
+				value = "synthetic_flag_" + random.nextInt(1000);
+				break;
+			default:
+				value = String.valueOf(random.nextInt(200) - 50);
+			}
+		} else if (rule.equals("country"))
+			value = pick(TAGS);
+		else
+			value = String.valueOf(1 + random.nextInt(2000));
+		return type + " = " + value;
+	}
+
+	private void writeLocalisation(Path folder, List<String> keys) throws IOException {
+		for (String tag : TAGS) {
+			keys.add(tag);
+		}
+		for (int i = 0; i < LOCALISATION_KEYS * scale; i++) {
+			keys.add("synthetic_key_" + i);
+		}
+		for (int start = 0, file = 0; start < keys.size(); start += KEYS_PER_LOCALISATION_FILE, file++) {
+			List<String> lines = new ArrayList<>();
+			lines.add("l_english:");
+			for (String key : keys.subList(start, Math.min(keys.size(), start + KEYS_PER_LOCALISATION_FILE))) {
+				lines.add(" " + key + ":0 \"Synthetic text for " + key + "\"");
+			}
+			write(folder.resolve(String.format("localisation/synthetic_%03d_l_english.yml", file)), lines);
+		}
+	}
+
+	private <T> T pick(List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	private <T> T pick(T[] array) {
+		return array[random.nextInt(array.length)];
+	}
+
+	private static void write(Path file, List<String> lines) throws IOException {
+		Files.createDirectories(file.getParent());
+		IO.writeFile(file, lines);
+	}
+
+	/**
+	 * Generates a synthetic game folder. Arguments: the folder, the scale
+	 * (defaults to 1), and the game (defaults to "eu4")
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: SyntheticGame <folder> [scale] [game]");
+			return;
+		}
+		int scale = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		String game = args.length > 2 ? args[2].toLowerCase() : "eu4";
+		generate(Paths.get(args[0]), game, scale, 0);
+	}
+}
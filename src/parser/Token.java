@@ -1,32 +1,148 @@
 package parser;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import parser.Localisation.Operator;
 
 public class Token {
+	/**
+	 * The kinds of scalar a token's value can be, decided once when the token
+	 * is created
+	 */
+	public enum Kind {
+		/** E.G. -5. The scalar holds the number */
+		INTEGER,
+		/** E.G. 0.25. The scalar holds the bits of the number as a double */
+		DECIMAL,
+		/** E.G. 1444.11.11. The scalar holds the year, month and day as year * 10000 + month * 100 + day */
+		DATE,
+		/** yes or no. The scalar is 1 for yes */
+		BOOLEAN,
+		/** Three letters, E.G. FRA */
+		TAG,
+		/** Anything else that was in quotes */
+		QUOTED,
+		/** Anything else */
+		STRING
+	}
+	
 	public final String type, value;
 	public final Operator operator;
 	public final Token parent;
 	public final List<Token> children;
+	/** What the value is. Null if there is no value */
+	public final Kind kind;
+	/** The value decoded according to its kind. 0 if there is nothing to decode */
+	public final long scalar;
+	/** Path of the file the token was read from, E.G. "events/flavor.txt". Null if unknown */
+	public final String file;
+	/** The line of the file the token was read from. 0 if unknown */
+	public final int line;
 	public boolean inverted = false;
-	public boolean disabled = false;
 	
-	private Token(String type, String value, Operator operator, Token parent) {
+	private Token(String type, String value, Operator operator, Token parent, String file, int line) {
 		super();
 		this.type = type.toLowerCase();
-		if (value == null)
-			this.value = null;
-		else
-			this.value = value.replaceAll("^\"(.*)\"$", "$1");
+		boolean quoted = value != null && value.length() >= 2 && value.charAt(0) == '"'
+				&& value.charAt(value.length() - 1) == '"';
+		this.value = quoted ? value.substring(1, value.length() - 1) : value;
+		this.kind = this.value == null ? null : classify(this.value, quoted);
+		this.scalar = this.value == null ? 0 : decode(this.value, kind);
 		this.operator = operator;
+		this.file = file;
+		this.line = line;
 		this.parent = parent;
 		if (parent != null)
 			parent.children.add(this);
 		children = new ArrayList<>();
 	}
 	
+	/**
+	 * Determines what kind of scalar a value is, without regular expressions
+	 * since every value is classified
+	 */
+	static Kind classify(String value, boolean quoted) {
+		int length = value.length();
+		int i = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+		int digits = i;
+		while (digits < length && isDigit(value.charAt(digits)))
+			digits++;
+		if (digits > i) {
+			if (digits == length)
+				return digits - i > 18 ? Kind.DECIMAL : Kind.INTEGER;
+			if (value.charAt(digits) == '.') {
+				int fraction = digits + 1;
+				while (fraction < length && isDigit(value.charAt(fraction)))
+					fraction++;
+				if (fraction == length)
+					return Kind.DECIMAL;
+				if (i == 0 && value.charAt(fraction) == '.' && fraction > digits + 1 && fraction + 1 < length) {
+					int day = fraction + 1;
+					while (day < length && isDigit(value.charAt(day)))
+						day++;
+					if (day == length && digits <= 9 && fraction - digits <= 3 && length - fraction <= 3)
+						return Kind.DATE;
+				}
+			}
+		}
+		if (value.equals("yes") || value.equals("no"))
+			return Kind.BOOLEAN;
+		if (length == 3 && isLetter(value.charAt(0)) && isLetter(value.charAt(1)) && isLetter(value.charAt(2)))
+			return Kind.TAG;
+		return quoted ? Kind.QUOTED : Kind.STRING;
+	}
+	
+	static long decode(String value, Kind kind) {
+		switch (kind) {
+		case INTEGER:
+			return Long.parseLong(value);
+		case DECIMAL:
+			return Double.doubleToLongBits(Double.parseDouble(value));
+		case DATE:
+			String[] parts = value.split("\\.");
+			return Long.parseLong(parts[0]) * 10000 + Integer.parseInt(parts[1]) * 100 + Integer.parseInt(parts[2]);
+		case BOOLEAN:
+			return value.equals("yes") ? 1 : 0;
+		default:
+			return 0;
+		}
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+	
+	/**
+	 * Determines whether the value is an integer or decimal
+	 * @return Whether it's a number
+	 */
+	public boolean isNumber() {
+		return kind == Kind.INTEGER || kind == Kind.DECIMAL;
+	}
+	
+	/**
+	 * Gets the value as a number
+	 * @return The number. NaN if the value isn't a number
+	 */
+	public double getNumber() {
+		return toNumber(kind, scalar);
+	}
+	
+	static double toNumber(Kind kind, long scalar) {
+		if (kind == Kind.INTEGER)
+			return scalar;
+		else if (kind == Kind.DECIMAL)
+			return Double.longBitsToDouble(scalar);
+		else
+			return Double.NaN;
+	}
+	
 	/**
 	 * Creates a token from a given string and its parent token
 	 * @param s The string to turn into a token
@@ -34,6 +150,10 @@ public class Token {
 	 * @return The created token
 	 */
 	public static Token tokenize(String s, Token parent) {
+		return tokenize(s, parent, 0);
+	}
+	
+	private static Token tokenize(String s, Token parent, int line) {
 		Operator operator = null;
 		int index = -1;
 		if (s.indexOf('=') != -1) {
@@ -47,10 +167,12 @@ public class Token {
 			index = s.indexOf('>');
 		}
 		
+		String file = parent == null ? null : parent.file;
 		if (index == -1)
-			return new Token(s, null, null, parent);
+			return new Token(s, null, null, parent, file, line);
 		else
-			return new Token(s.substring(0, index).trim(), s.substring(index + 1).trim(), operator, parent);
+			return new Token(s.substring(0, index).trim(), s.substring(index + 1).trim(), operator, parent, file,
+					line);
 	}
 	
 	/**
@@ -59,22 +181,53 @@ public class Token {
 	 * @return The root token
 	 */
 	public static Token tokenize(List<String> file) {
-		Token root = new Token("file", null, null, null);
+		return tokenize(null, file, null, null);
+	}
+	
+	/**
+	 * Creates a token tree from a given file, recording where each token came from and optionally sharing
+	 * identical subtrees
+	 * @param fileName The path of the file relative to the game folder. Null if unknown
+	 * @param file The lines of the file
+	 * @param lineNumbers The line of the original file each line came from. Null if unknown
+	 * @param interner Used to store identical subtrees only once. Null to keep every copy
+	 * @return The root token
+	 */
+	static Token tokenize(String fileName, List<String> file, List<Integer> lineNumbers, TreeInterner interner) {
+		Token root = new Token("file", null, null, null, fileName, 0);
 		Token block = root;
+		Iterator<Integer> lines = lineNumbers == null ? null : lineNumbers.iterator();
 		
 		for (String string : file) {
-			if (string.equals("}"))
+			int line = lines == null ? 0 : lines.next();
+			if (string.equals("}")) {
+				Token closed = block;
 				block = block.parent;
-			else if (string.contains("{")) {
-				block = tokenize(string, block);
+				if (block != null)
+					intern(closed, interner);
+			} else if (string.contains("{")) {
+				block = tokenize(string, block, line);
 			} else {
-				tokenize(string, block);
+				intern(tokenize(string, block, line), interner);
 			}
 		}
+		if (interner != null)
+			interner.finish();
 		
 		return root;
 	}
 	
+	/**
+	 * Replaces a token, which must be the last child of its parent, with its canonical copy
+	 */
+	private static void intern(Token token, TreeInterner interner) {
+		if (interner == null)
+			return;
+		Token canonical = interner.intern(token);
+		if (canonical != token)
+			token.parent.children.set(token.parent.children.size() - 1, canonical);
+	}
+	
 	public String toString() {
 		if (value == null)
 			return type;
@@ -0,0 +1,331 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import parser.Localisation.Operator;
+import parser.Token.Kind;
+
+/**
+ * An index over the token trees of many files, answering path queries such as
+ * "every add_country_modifier named my_modifier" without walking every tree.
+ * For each token type, the index keeps a list of every token of that type, so
+ * a query only visits the tokens matching its last step and their ancestors.
+ * <p>
+ * Query syntax: steps separated by "/" (the next step is a child of the
+ * previous one) or "//" (a descendant). A leading "/" anchors the first step
+ * to the top level of a file; otherwise it may be anywhere. Each step is a
+ * token type, or "*" for any, optionally followed by conditions in brackets
+ * on its children, and then a condition on its own value. Conditions are a
+ * type, optionally followed by one of =, !=, &lt;, &gt;, &lt;=, &gt;= and a
+ * value. Values are compared as numbers where both sides are numbers, as
+ * dates where both sides are dates, and otherwise as case-insensitive text.
+ * A token written with &lt; or &gt;, such as "num_of_cities &lt; 3", states a
+ * bound rather than a value, so it only matches a condition with the same
+ * operator and an equal value. A != condition matches whatever the same
+ * condition with = would not.
+ * Examples:
+ * <ul>
+ * <li>country_event//add_country_modifier[name = my_modifier]</li>
+ * <li>mean_time_to_happen[months &gt; 120]</li>
+ * <li>option/add_prestige &gt;= 10</li>
+ * </ul>
+ */
+public class TokenIndex {
+	private static final Pattern STEP = Pattern
+			.compile("\\s*([^\\[\\]=<>!\\s]+)\\s*((?:\\[[^\\]]*\\]\\s*)*)(?:(!=|<=|>=|=|<|>)\\s*(.*?))?\\s*");
+	private static final Pattern CONDITION = Pattern
+			.compile("\\[\\s*([^\\]=<>!\\s]+)\\s*(?:(!=|<=|>=|=|<|>)\\s*([^\\]]*?))?\\s*\\]");
+	private static final String ANY = "*";
+
+	/** Every token of each type */
+	private final Map<String, List<Token>> postings = new HashMap<>();
+	private final List<Token> all = new ArrayList<>();
+
+	/**
+	 * Reads and indexes every file within a folder of the game
+	 *
+	 * @param files
+	 *            The game's files
+	 * @param folder
+	 *            The folder, E.G. "events"
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static TokenIndex build(VirtualFileSystem files, String folder) throws IOException {
+		TokenIndex index = new TokenIndex();
+		for (Path file : files.listFiles(folder)) {
+			index.add(Parsing.readTree(files, file, null));
+		}
+		return index;
+	}
+
+	/**
+	 * Adds a token tree to the index
+	 *
+	 * @param root
+	 *            The root token of the tree
+	 */
+	public void add(Token root) {
+		for (Token child : root.children) {
+			addTree(child);
+		}
+	}
+
+	private void addTree(Token token) {
+		List<Token> list = postings.get(token.type);
+		if (list == null) {
+			list = new ArrayList<>();
+			postings.put(token.type, list);
+		}
+		list.add(token);
+		all.add(token);
+		for (Token child : token.children) {
+			addTree(child);
+		}
+	}
+
+	/**
+	 * Finds every token matching a query
+	 *
+	 * @param query
+	 *            The query. See the class description for its syntax
+	 * @return The tokens matching the query's last step, in the order they
+	 *         were added
+	 */
+	public List<Token> select(String query) {
+		return select(Query.compile(query));
+	}
+
+	public List<Token> select(Query query) {
+		Step last = query.steps.get(query.steps.size() - 1);
+		List<Token> candidates = last.type.equals(ANY) ? all : postings.get(last.type);
+		if (candidates == null)
+			return Collections.emptyList();
+		List<Token> found = new ArrayList<>();
+		for (Token token : candidates) {
+			if (query.matches(token, query.steps.size() - 1))
+				found.add(token);
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the file a token was read from
+	 *
+	 * @param token
+	 *            A token in the index
+	 * @return The file's path relative to the game folder. Null if unknown
+	 */
+	public String getFile(Token token) {
+		return token.file;
+	}
+
+	/**
+	 * Runs queries over every event of the game in the settings file, printing
+	 * each token found along with its file
+	 * 
+	 * @param args
+	 *            The queries
+	 */
+	public static void main(String[] args) throws IOException {
+		HashMap<String, String> settings = new HashMap<>();
+		IO.readLocalisation("settings.txt", settings);
+		TokenIndex index;
+		try (VirtualFileSystem files = VirtualFileSystem.create(settings)) {
+			index = build(files, "events");
+		}
+		for (String query : args) {
+			long start = System.nanoTime();
+			List<Token> found = index.select(query);
+			for (Token token : found) {
+				System.out.println(index.getFile(token) + ": " + token);
+			}
+			System.out.println(String.format("%s: %d found in %.1f ms", query, found.size(),
+					(System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	/**
+	 * A compiled query, for running the same query more than once
+	 */
+	public static class Query {
+		private final List<Step> steps;
+		/** Whether the first step must be at the top level of a file */
+		private final boolean anchored;
+
+		private Query(List<Step> steps, boolean anchored) {
+			this.steps = steps;
+			this.anchored = anchored;
+		}
+
+		/**
+		 * Compiles a query
+		 *
+		 * @param query
+		 *            The query. See {@link TokenIndex} for its syntax
+		 * @return The compiled query
+		 * @throws IllegalArgumentException
+		 *             If the query is malformed
+		 */
+		public static Query compile(String query) {
+			List<Step> steps = new ArrayList<>();
+			boolean anchored = query.startsWith("/") && !query.startsWith("//");
+			boolean descendant = !anchored;
+			int depth = 0;
+			int start = query.startsWith("//") ? 2 : anchored ? 1 : 0;
+			for (int i = start; i <= query.length(); i++) {
+				char c = i < query.length() ? query.charAt(i) : '/';
+				if (c == '[')
+					depth++;
+				else if (c == ']')
+					depth--;
+				else if (c == '/' && depth == 0) {
+					steps.add(Step.parse(query.substring(start, i), descendant));
+					descendant = i + 1 < query.length() && query.charAt(i + 1) == '/';
+					if (descendant)
+						i++;
+					start = i + 1;
+				}
+			}
+			return new Query(steps, anchored);
+		}
+
+		/**
+		 * Determines whether a token matches a step and all the steps before
+		 * it
+		 */
+		private boolean matches(Token token, int step) {
+			Step current = steps.get(step);
+			if (!current.matches(token))
+				return false;
+			Token parent = token.parent;
+			if (step == 0)
+				return !anchored || (parent != null && parent.parent == null);
+			if (!current.descendant)
+				return parent != null && matches(parent, step - 1);
+			for (; parent != null; parent = parent.parent) {
+				if (matches(parent, step - 1))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static class Step {
+		final String type;
+		/** Whether the step may be any number of levels below the previous one */
+		final boolean descendant;
+		final Condition value;
+		final List<Condition> children = new ArrayList<>();
+
+		private Step(String type, boolean descendant, Condition value) {
+			this.type = type;
+			this.descendant = descendant;
+			this.value = value;
+		}
+
+		static Step parse(String step, boolean descendant) {
+			Matcher matcher = STEP.matcher(step);
+			if (!matcher.matches())
+				throw new IllegalArgumentException("Malformed query step: " + step);
+			String type = matcher.group(1).toLowerCase();
+			Condition value = matcher.group(3) == null ? null
+					: new Condition(type, matcher.group(3), matcher.group(4));
+			Step out = new Step(type, descendant, value);
+			Matcher conditions = CONDITION.matcher(matcher.group(2));
+			while (conditions.find()) {
+				out.children.add(new Condition(conditions.group(1).toLowerCase(), conditions.group(2),
+						conditions.group(3)));
+			}
+			return out;
+		}
+
+		boolean matches(Token token) {
+			if (!type.equals(ANY) && !type.equals(token.type))
+				return false;
+			if (value != null && !value.matchesValue(token))
+				return false;
+			for (Condition condition : children) {
+				if (!condition.matchesAnyChild(token))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private static class Condition {
+		final String type;
+		/** The comparison. Null if the condition only requires the type to exist */
+		final String operator;
+		final String value;
+		/** The value's kind and decoded value, as for a token's value. Null if there is no value */
+		final Kind kind;
+		final long scalar;
+
+		Condition(String type, String operator, String value) {
+			this.type = type;
+			this.operator = operator;
+			this.value = value == null ? null : value.replaceAll("^\"(.*)\"$", "$1");
+			this.kind = this.value == null ? null : Token.classify(this.value, false);
+			this.scalar = this.value == null ? 0 : Token.decode(this.value, kind);
+		}
+
+		boolean matchesAnyChild(Token token) {
+			for (Token child : token.children) {
+				if ((type.equals(ANY) || type.equals(child.type)) && matchesValue(child))
+					return true;
+			}
+			return false;
+		}
+
+		boolean matchesValue(Token token) {
+			if (operator == null)
+				return true;
+			if (token.value == null)
+				return operator.equals("!=");
+			int comparison = compare(token);
+			if (token.operator != Operator.EQUAL) {
+				boolean same = comparison == 0 && operator.equals(token.operator == Operator.LESS ? "<" : ">");
+				return same || operator.equals("!=");
+			}
+			switch (operator) {
+			case "=":
+				return comparison == 0;
+			case "!=":
+				return comparison != 0;
+			case "<":
+				return comparison < 0;
+			case ">":
+				return comparison > 0;
+			case "<=":
+				return comparison <= 0;
+			case ">=":
+				return comparison >= 0;
+			default:
+				throw new IllegalStateException("Invalid operator!");
+			}
+		}
+
+		/**
+		 * Compares a token's value with the condition's, by what both values
+		 * are
+		 */
+		private int compare(Token token) {
+			if (kind == Kind.INTEGER && token.kind == Kind.INTEGER)
+				return Long.compare(token.scalar, scalar);
+			if (kind == Kind.DATE && token.kind == Kind.DATE)
+				return Long.compare(token.scalar, scalar);
+			if ((kind == Kind.INTEGER || kind == Kind.DECIMAL) && token.isNumber())
+				return Double.compare(token.getNumber(), Token.toNumber(kind, scalar));
+			return token.value.compareToIgnoreCase(value);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Hash-conses the token tree of a file as it is built, so that structurally
+ * identical subtrees, such as copy-pasted ai_chance or trigger blocks, are
+ * stored once. Subtrees are interned bottom-up: a block is only looked up once
+ * it is closed, by which time its children are already canonical, so two
+ * blocks are identical if their own fields match and they hold the very same
+ * children.
+ * <p>
+ * A subtree's rendering depends on its parent's type, so the parent's type is
+ * part of what must match; a shared subtree's parent is the parent of its
+ * first copy. The rendered lines of shared blocks are remembered per nesting
+ * and inversion, so each is only rendered once for each place it is used in.
+ * The index of canonical copies is only needed while the tree is built, so it
+ * is dropped once it is finished, keeping only the shared blocks. An interner
+ * belongs to a single file and is not thread-safe.
+ */
+final class TreeInterner {
+	/** Every distinct subtree seen so far. Null once the tree is finished */
+	private Map<Key, Token> canonical = new HashMap<>();
+	/** Renderings of each shared block, by nesting and inversion */
+	private final Map<Token, Map<Integer, Rendering>> rendered = new IdentityHashMap<>();
+
+	/**
+	 * The lines a shared block was rendered to, and the errors recorded while
+	 * rendering it, which count again each time it is reused
+	 */
+	static final class Rendering {
+		final List<String> lines;
+		final List<ErrorLog.Recorded> errors;
+
+		private Rendering(List<String> lines, List<ErrorLog.Recorded> errors) {
+			this.lines = lines;
+			this.errors = errors;
+		}
+	}
+
+	/**
+	 * Finds the canonical copy of a token, whose children must already be
+	 * canonical
+	 *
+	 * @param token
+	 *            The token
+	 * @return An identical token seen earlier, or the token itself if it is
+	 *         the first of its kind
+	 */
+	Token intern(Token token) {
+		Key key = new Key(token);
+		Token found = canonical.putIfAbsent(key, token);
+		if (found == null)
+			return token;
+		if (!found.children.isEmpty() && !rendered.containsKey(found))
+			rendered.put(found, new HashMap<>());
+		return found;
+	}
+
+	/**
+	 * Drops the index of canonical copies once the tree is built. Nothing
+	 * more may be interned afterwards
+	 */
+	void finish() {
+		canonical = null;
+	}
+
+	/**
+	 * Determines whether a block appears more than once in the file, making
+	 * it worth remembering how it was rendered
+	 */
+	boolean isShared(Token token) {
+		return rendered.containsKey(token);
+	}
+
+	/**
+	 * Gets how a shared block was rendered
+	 *
+	 * @return The rendering. Null if it hasn't been rendered at this nesting
+	 *         and inversion yet
+	 */
+	Rendering getRendered(Token token, int nesting, boolean inverted) {
+		return rendered.get(token).get(renderKey(nesting, inverted));
+	}
+
+	Rendering putRendered(Token token, int nesting, boolean inverted, List<String> lines,
+			List<ErrorLog.Recorded> errors) {
+		Rendering rendering = new Rendering(new ArrayList<>(lines), errors);
+		rendered.get(token).put(renderKey(nesting, inverted), rendering);
+		return rendering;
+	}
+
+	/**
+	 * Forgets how every shared block was rendered, so the tree can be
+	 * rendered again with different rules
+	 */
+	void clearRendered() {
+		for (Map<Integer, Rendering> renderings : rendered.values()) {
+			renderings.clear();
+		}
+	}
+
+	private static int renderKey(int nesting, boolean inverted) {
+		return nesting * 2 + (inverted ? 1 : 0);
+	}
+
+	private static final class Key {
+		private final Token token;
+		private final int hash;
+
+		Key(Token token) {
+			this.token = token;
+			int hash = Objects.hash(token.parent == null ? null : token.parent.type, token.type, token.operator,
+					token.value);
+			for (Token child : token.children) {
+				hash = 31 * hash + System.identityHashCode(child);
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Token other = ((Key) o).token;
+			if (hash != ((Key) o).hash || token.operator != other.operator || !token.type.equals(other.type)
+					|| !Objects.equals(token.value, other.value)
+					|| (token.parent == null) != (other.parent == null)
+					|| (token.parent != null && !token.parent.type.equals(other.parent.type))
+					|| token.children.size() != other.children.size())
+				return false;
+			for (int i = 0; i < token.children.size(); i++) {
+				if (token.children.get(i) != other.children.get(i))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The game folder with any number of mods layered on top of it. Files are
+ * looked up by their path relative to the game folder, E.G.
+ * "common/event_modifiers/00_event_modifiers.txt", and resolve to whichever
+ * root last provided that file, following the game's own override rules:
+ * <ul>
+ * <li>A mod file replaces any earlier file with the same relative path</li>
+ * <li>A mod's "replace_path" entries hide every earlier file within those
+ * folders</li>
+ * </ul>
+ * The index is built once, by walking each root a single time, and nothing
+ * is copied to disk. Closing it closes any archives the roots were opened
+ * from.
+ */
+public class VirtualFileSystem implements Closeable {
+	private static final String DESCRIPTOR = "descriptor.mod";
+
+	private final List<Path> roots;
+	/** Relative path (lower case, "/"-separated) to the file that wins */
+	private final NavigableMap<String, Entry> files = new TreeMap<>();
+
+	private static class Entry {
+		final int root;
+		final Path file;
+
+		Entry(int root, Path file) {
+			this.root = root;
+			this.file = file;
+		}
+	}
+
+	private VirtualFileSystem(List<Path> roots) {
+		this.roots = Collections.unmodifiableList(roots);
+	}
+
+	/**
+	 * Builds the merged index of a game folder and its mods
+	 *
+	 * @param game
+	 *            Root of the game folder
+	 * @param mods
+	 *            Roots of the mods, in load order. Later mods override earlier
+	 *            ones
+	 * @return The merged file system
+	 * @throws IOException
+	 */
+	public static VirtualFileSystem create(Path game, List<Path> mods) throws IOException {
+		List<Path> roots = new ArrayList<>();
+		roots.add(game);
+		roots.addAll(mods);
+		VirtualFileSystem vfs = new VirtualFileSystem(roots);
+		for (int i = 0; i < roots.size(); i++) {
+			vfs.addRoot(i);
+		}
+		return vfs;
+	}
+
+	/**
+	 * Builds the merged index from the "path" and "mods" settings. Mods are
+	 * listed comma-separated, in load order
+	 *
+	 * @param settings
+	 *            The parser's settings
+	 * @return The merged file system
+	 * @throws IOException
+	 */
+	public static VirtualFileSystem create(Map<String, String> settings) throws IOException {
+		List<Path> mods = new ArrayList<>();
+		String modList = settings.get("mods");
+		if (modList != null)
+			for (String mod : modList.split(",")) {
+				if (!mod.trim().isEmpty())
+					mods.add(IO.getRoot(mod.trim()));
+			}
+		return create(IO.getRoot(settings.get("path")), mods);
+	}
+
+	private void addRoot(int index) throws IOException {
+		Path root = roots.get(index);
+		if (!Files.isDirectory(root))
+			throw new IOException("Not a game or mod folder: " + root);
+
+		for (String folder : getReplacedPaths(root)) {
+			String prefix = folder + "/";
+			files.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+		for (Path file : IO.listFiles(root)) {
+			String key = normalize(root.relativize(file).toString());
+			if (!key.equals(DESCRIPTOR))
+				files.put(key, new Entry(index, file));
+		}
+	}
+
+	/**
+	 * Reads the folders a mod replaces outright from its descriptor
+	 *
+	 * @param root
+	 *            Root of the mod
+	 * @return The replaced folders, normalized. Empty if there is no
+	 *         descriptor
+	 * @throws IOException
+	 */
+	private static Set<String> getReplacedPaths(Path root) throws IOException {
+		Set<String> replaced = new HashSet<>();
+		Path descriptor = root.resolve(DESCRIPTOR);
+		if (!Files.isRegularFile(descriptor))
+			return replaced;
+		for (Token token : Token.tokenize(IO.readFile(descriptor)).children) {
+			if (token.type.equals("replace_path") && token.value != null)
+				replaced.add(normalize(token.value));
+		}
+		return replaced;
+	}
+
+	private static String normalize(String relativePath) {
+		String key = relativePath.replace('\\', '/').toLowerCase();
+		while (key.startsWith("/"))
+			key = key.substring(1);
+		while (key.endsWith("/"))
+			key = key.substring(0, key.length() - 1);
+		return key;
+	}
+
+	/**
+	 * Looks up a single file
+	 *
+	 * @param relativePath
+	 *            Path relative to the game folder
+	 * @return The winning file. Null if no root provides it
+	 */
+	public Path getFile(String relativePath) {
+		Entry entry = files.get(normalize(relativePath));
+		return entry == null ? null : entry.file;
+	}
+
+	/**
+	 * Finds where a file lies within the root it comes from
+	 *
+	 * @param file
+	 *            A file listed or looked up here
+	 * @return Its path relative to its root, "/"-separated, E.G.
+	 *         "events/flavor/France.txt"
+	 * @throws IllegalArgumentException
+	 *             If the file is not within any root
+	 */
+	public String getRelativePath(Path file) {
+		Path found = null;
+		// Mods may lie within the game folder, so the innermost root is the one it comes from
+		for (Path root : roots) {
+			if (file.getFileSystem() == root.getFileSystem() && file.startsWith(root)
+					&& (found == null || root.getNameCount() > found.getNameCount()))
+				found = root;
+		}
+		if (found == null)
+			throw new IllegalArgumentException("Not a game or mod file: " + file);
+		return found.relativize(file).toString().replace(found.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * Lists the winning files within a folder and its subfolders. Files are
+	 * ordered by the root they come from, base game first, and then by path.
+	 * Anything reading them in order into a map thus lets later mods override
+	 * earlier ones
+	 *
+	 * @param folder
+	 *            Folder relative to the game folder
+	 * @return The files found
+	 */
+	public List<Path> listFiles(String folder) {
+		String prefix = normalize(folder) + "/";
+		List<Entry> found = new ArrayList<>();
+		for (Map.Entry<String, Entry> entry : files.tailMap(prefix, true).entrySet()) {
+			if (!entry.getKey().startsWith(prefix))
+				break;
+			found.add(entry.getValue());
+		}
+		// Stable sort, so path order is kept within each root
+		found.sort((a, b) -> Integer.compare(a.root, b.root));
+		List<Path> out = new ArrayList<>(found.size());
+		for (Entry entry : found) {
+			out.add(entry.file);
+		}
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Path root : roots) {
+			FileSystem fileSystem = root.getFileSystem();
+			if (fileSystem != FileSystems.getDefault())
+				fileSystem.close();
+		}
+	}
+
+	/**
+	 * Finds a file, or every file within a folder if no file by that name
+	 * exists
+	 *
+	 * @param relativePath
+	 *            Path relative to the game folder
+	 * @return The files found
+	 */
+	public Collection<Path> find(String relativePath) {
+		Path file = getFile(relativePath);
+		if (file != null)
+			return Collections.singletonList(file);
+		return listFiles(relativePath);
+	}
+}
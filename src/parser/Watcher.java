@@ -0,0 +1,236 @@
+package parser;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders every event once, then watches the statement and rule files. When
+ * one is edited, the rules are reloaded and only the outputs whose rendering
+ * used a changed statement or rule are rendered again.
+ * <p>
+ * To know which outputs are affected, every rule key (statement key or token
+ * type) used while rendering a file is recorded, and kept in a reverse index
+ * from each key to the files that used it. The keys the render plans of a
+ * file's tokens are compiled from only depend on its token tree, so they are
+ * indexed once, when it is read. Event files aren't watched, so
+ * each is read once and its token tree kept, and affected files are rendered
+ * in parallel. Rendered leaf statements that used no changed rule are kept
+ * from one version of the rules to the next, and an output is only written
+ * again if its lines changed.
+ */
+class Watcher {
+	/** How long to wait for further changes after one is seen, in milliseconds */
+	private static final long SETTLE_TIME = 50;
+
+	private final VirtualFileSystem files;
+	private final String game;
+	private final OutputSink sink;
+	private final boolean dedupe;
+	private GameContext context;
+
+	/** Token tree of each event file, with the interner it was built with, if any */
+	private final Map<Path, Token> trees = new ConcurrentHashMap<>();
+	private final Map<Path, TreeInterner> interners = new ConcurrentHashMap<>();
+	/** The lines last written for each event file */
+	private final Map<Path, List<String>> outputs = new ConcurrentHashMap<>();
+	private List<String> errorReport;
+	/** Event files whose rendering used each statement key */
+	private final Map<String, Set<Path>> dependents = new HashMap<>();
+	/** Statement keys used by each event file */
+	private final Map<Path, Set<String>> dependencies = new HashMap<>();
+	/** Event files with tokens whose render plans are compiled from each rule key */
+	private final Map<String, Set<Path>> planDependents = new HashMap<>();
+
+	Watcher(VirtualFileSystem files, String game, Path outputFolder, boolean dedupe) throws IOException {
+		this.files = files;
+		this.game = game;
+		this.sink = new DirectorySink(outputFolder);
+		this.dedupe = dedupe;
+	}
+
+	/**
+	 * Renders every event and then re-renders affected events whenever the
+	 * rules change. Does not return
+	 *
+	 * @throws IOException
+	 */
+	void watch() throws IOException {
+		context = GameContext.load(files, game);
+		List<Path> events = files.listFiles("events");
+		Map<Path, Set<String>> planKeys = new ConcurrentHashMap<>();
+		events.parallelStream().forEach(event -> {
+			Set<String> keys = readTree(event);
+			if (keys != null)
+				planKeys.put(event, keys);
+		});
+		for (Map.Entry<Path, Set<String>> entry : planKeys.entrySet()) {
+			for (String key : entry.getValue()) {
+				planDependents.computeIfAbsent(key, k -> new HashSet<>()).add(entry.getKey());
+			}
+		}
+		render(events);
+
+		try (WatchService service = FileSystems.getDefault().newWatchService()) {
+			for (String folder : new String[] { "statements", "statements/" + game,
+					"statements/" + game + "/localisation" }) {
+				Paths.get(folder).register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			}
+			System.out.println("Watching statements/" + game + " for changes");
+			while (true) {
+				boolean changed = hasRuleChanges(service.take());
+				// Editors often write a file in several steps, so let it settle
+				Thread.sleep(SETTLE_TIME);
+				for (WatchKey key = service.poll(); key != null; key = service.poll()) {
+					changed |= hasRuleChanges(key);
+				}
+				if (changed) {
+					try {
+						reload();
+					} catch (IOException | RuntimeException e) {
+						// Likely a rule file saved half-way; it will be saved again
+						System.out.println("Unable to reload the rules, so the previous ones are kept: " + e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean hasRuleChanges(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.context() instanceof Path && event.context().toString().endsWith(".txt"))
+				changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+
+	private void reload() throws IOException {
+		long start = System.nanoTime();
+		GameContext old = context;
+		context = context.reloadRules(files);
+		Set<String> changed = context.getChangedKeys(old);
+		Collection<Path> affected;
+		if (changed == null)
+			affected = files.listFiles("events");
+		else {
+			context.keepRenderings(old, changed);
+			affected = new LinkedHashSet<>();
+			for (String key : changed) {
+				for (Map<String, Set<Path>> index : Arrays.asList(dependents, planDependents)) {
+					Set<Path> paths = index.get(key);
+					if (paths != null)
+						affected.addAll(paths);
+				}
+			}
+		}
+		int written = render(affected);
+		System.out.println(String.format("Rules changed; re-rendered %d files, %d of which changed, in %d ms",
+				affected.size(), written, (System.nanoTime() - start) / 1000000));
+	}
+
+	/**
+	 * Reads an event file and keeps its token tree
+	 *
+	 * @param event
+	 *            The event file
+	 * @return The rule keys the render plans of its tokens are compiled from.
+	 *         Null if it couldn't be read
+	 */
+	private Set<String> readTree(Path event) {
+		TreeInterner interner = dedupe ? new TreeInterner() : null;
+		try {
+			Token root = Parsing.readTree(files, event, interner);
+			trees.put(event, root);
+			if (interner != null)
+				interners.put(event, interner);
+			Set<String> keys = new HashSet<>();
+			GameContext.recordPlanKeys(root, keys);
+			return keys;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Renders event files in parallel, recording the statement keys each one
+	 * uses, and writes those whose output changed
+	 *
+	 * @param events
+	 *            The event files to render
+	 * @return How many outputs were written
+	 * @throws IOException
+	 */
+	private int render(Collection<Path> events) throws IOException {
+		GameContext context = this.context;
+		// Each file's errors are replaced, so keys that have since been fixed drop out
+		ErrorLog errors = context.getLocalisation().getErrors();
+		for (Path event : events) {
+			errors.forget(files.getRelativePath(event));
+		}
+		Map<Path, Set<String>> usedByEvent = new ConcurrentHashMap<>();
+		LongAdder written = new LongAdder();
+		events.parallelStream().forEach(event -> {
+			Token root = trees.get(event);
+			if (root == null)
+				return; // Couldn't be read
+			Set<String> used = new HashSet<>();
+			Localisation.usedKeys.set(used);
+			try {
+				List<String> lines = Parsing.render(context, root, interners.get(event));
+				if (!lines.equals(outputs.get(event))) {
+					sink.write(Parsing.getOutputName(files, event), lines);
+					outputs.put(event, lines);
+					written.increment();
+				}
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Unable to render " + event.getFileName() + ": " + e);
+			} finally {
+				Localisation.usedKeys.remove();
+			}
+			usedByEvent.put(event, used);
+		});
+
+		for (Map.Entry<Path, Set<String>> entry : usedByEvent.entrySet()) {
+			Path event = entry.getKey();
+			Set<String> previous = dependencies.put(event, entry.getValue());
+			if (entry.getValue().equals(previous))
+				continue;
+			if (previous != null)
+				for (String key : previous) {
+					dependents.get(key).remove(event);
+				}
+			for (String key : entry.getValue()) {
+				dependents.computeIfAbsent(key, k -> new HashSet<>()).add(event);
+			}
+		}
+		List<String> report = context.getLocalisation().getErrors().getReport();
+		if (!report.equals(errorReport)) {
+			sink.write("errors.txt", report);
+			errorReport = report;
+		}
+		return written.intValue();
+	}
+}
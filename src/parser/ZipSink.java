@@ -0,0 +1,189 @@
+package parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes every file into a single zip archive. Files are deflated in parallel
+ * on worker threads, and written to the archive in the order they were
+ * given, by whichever thread gives the next file, as soon as each is ready.
+ * <p>
+ * ZipOutputStream can only compress entries itself, one at a time, so the
+ * archive's headers are written here directly. Zip64 is not supported, so an
+ * archive is limited to 65535 files and 4 GB. Each name may only be written
+ * once.
+ */
+final class ZipSink implements OutputSink {
+	private static final int LOCAL_HEADER = 0x04034B50;
+	private static final int CENTRAL_HEADER = 0x02014B50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054B50;
+	private static final short VERSION = 20;
+	/** Names are UTF-8 */
+	private static final short FLAGS = 0x0800;
+	private static final short DEFLATED = 8;
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	private final OutputStream out;
+	private final ExecutorService workers;
+	/** Most files compressed or waiting to be, before writing waits for them */
+	private final int maxPending;
+	/** Files being compressed, in the order they are to be written */
+	private final Deque<Future<Entry>> pending = new ArrayDeque<>();
+	private final List<Entry> written = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+	private final int dosTime, dosDate;
+	private long offset = 0;
+
+	private static final class Entry {
+		final byte[] name;
+		final byte[] data;
+		final int crc;
+		final long size;
+		long offset;
+
+		Entry(byte[] name, byte[] data, int crc, long size) {
+			this.name = name;
+			this.data = data;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            The archive. Replaced if it exists
+	 * @throws IOException
+	 */
+	ZipSink(Path file) throws IOException {
+		Path folder = file.toAbsolutePath().getParent();
+		if (folder != null)
+			Files.createDirectories(folder);
+		out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+		int threads = Runtime.getRuntime().availableProcessors();
+		workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "zip-deflater");
+			thread.setDaemon(true);
+			return thread;
+		});
+		maxPending = threads * 4;
+		LocalDateTime now = LocalDateTime.now();
+		dosTime = now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() / 2;
+		dosDate = Math.max(0, now.getYear() - 1980) << 9 | now.getMonthValue() << 5 | now.getDayOfMonth();
+	}
+
+	@Override
+	public synchronized void write(String name, Collection<String> contents) throws IOException {
+		if (!names.add(name))
+			throw new IOException("Duplicate entry in zip archive: " + name);
+		StringBuilder builder = new StringBuilder();
+		for (String string : contents) {
+			builder.append(string).append('\n');
+		}
+		byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+		pending.add(workers.submit(() -> deflate(encodedName, data)));
+
+		while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > maxPending)) {
+			writeEntry(take(pending.poll()));
+		}
+	}
+
+	private static Entry deflate(byte[] name, byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return new Entry(name, compressed.toByteArray(), (int) crc.getValue(), data.length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static Entry take(Future<Entry> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing output");
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to compress output", e.getCause());
+		}
+	}
+
+	private void writeEntry(Entry entry) throws IOException {
+		if (written.size() == MAX_ENTRIES || offset > MAX_SIZE || entry.size > MAX_SIZE)
+			throw new IOException("Output too large for a zip archive without Zip64");
+		entry.offset = offset;
+		ByteBuffer header = ByteBuffer.allocate(30 + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(LOCAL_HEADER).putShort(VERSION).putShort(FLAGS).putShort(DEFLATED);
+		header.putShort((short) dosTime).putShort((short) dosDate);
+		header.putInt(entry.crc).putInt(entry.data.length).putInt((int) entry.size);
+		header.putShort((short) entry.name.length).putShort((short) 0).put(entry.name);
+		out.write(header.array());
+		out.write(entry.data);
+		offset += header.capacity() + entry.data.length;
+		written.add(entry);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				writeEntry(take(pending.poll()));
+			}
+			if (offset > MAX_SIZE)
+				throw new IOException("Output too large for a zip archive without Zip64");
+			long start = offset;
+			for (Entry entry : written) {
+				ByteBuffer header = ByteBuffer.allocate(46 + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(CENTRAL_HEADER).putShort(VERSION).putShort(VERSION).putShort(FLAGS)
+						.putShort(DEFLATED);
+				header.putShort((short) dosTime).putShort((short) dosDate);
+				header.putInt(entry.crc).putInt(entry.data.length).putInt((int) entry.size);
+				header.putShort((short) entry.name.length).putShort((short) 0).putShort((short) 0);
+				header.putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) entry.offset);
+				header.put(entry.name);
+				out.write(header.array());
+				offset += header.capacity();
+			}
+			ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0);
+			end.putShort((short) written.size()).putShort((short) written.size());
+			end.putInt((int) (offset - start)).putInt((int) start).putShort((short) 0);
+			out.write(end.array());
+		} finally {
+			workers.shutdownNow();
+			out.close();
+		}
+	}
+}